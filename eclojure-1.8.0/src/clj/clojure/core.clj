@@ -1,3 +1,4 @@
+; eClojure
 ;   Copyright (c) Rich Hickey. All rights reserved.
 ;   The use and distribution terms for this software are covered by the
 ;   Eclipse Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php)
@@ -4285,9 +4286,24 @@
                      (fn [bvec b v]
                        (let [gmap (gensym "map__")
                              gmapseq (with-meta gmap {:tag 'clojure.lang.ISeq})
-                             defaults (:or b)]
+                             defaults (:or b)
+                             ;; a map binding form hinted as a record, its keys are read from fields
+                             record (let [tag (:tag (meta b))
+                                          c (when (symbol? tag) (resolve tag))
+                                          irecord clojure.lang.IRecord]
+                                      (when (and (instance? Class c) (.isAssignableFrom ^Class irecord c))
+                                        tag))
+                             ;; keyword lookup sites add fields and initialization code to the class
+                             keyword-sites (or record (get *compiler-options* :keyword-destructuring))]
                          (loop [ret (-> bvec (conj gmap) (conj v)
-                                        (conj gmap) (conj `(if (seq? ~gmap) (clojure.lang.PersistentHashMap/create (seq ~gmapseq)) ~gmap))
+                                        ;; maps are checked first as testing a map for ISeq is slow
+                                        (conj gmap) (conj `(if (instance? clojure.lang.IPersistentMap ~gmap)
+                                                             ~gmap
+                                                             (if (seq? ~gmap) (clojure.lang.PersistentHashMap/create (seq ~gmapseq)) ~gmap)))
+                                        ((fn [ret]
+                                           (if record
+                                             (conj ret (with-meta gmap {:tag record}) gmap)
+                                             ret)))
                                         ((fn [ret]
                                            (if (:as b)
                                              (conj ret (:as b) gmap)
@@ -4303,9 +4319,11 @@
                            (if (seq bes)
                              (let [bb (key (first bes))
                                    bk (val (first bes))
-                                   bv (if (contains? defaults bb)
-                                        (list `get gmap bk (defaults bb))
-                                        (list `get gmap bk))]
+                                   bv (cond
+                                        (contains? defaults bb) (list `get gmap bk (defaults bb))
+                                        ;; compiled as a keyword lookup site
+                                        (and keyword-sites (keyword? bk)) (list bk gmap)
+                                        :else (list `get gmap bk))]
                                (recur (cond
                                         (symbol? bb) (-> ret (conj (if (namespace bb) (symbol (name bb)) bb)) (conj bv))
                                         (keyword? bb) (-> ret (conj (symbol (name bb)) bv))
@@ -5689,6 +5707,58 @@
 
 (def ^:declared ^:redef load)
 
+(defonce ^:private lib-owners (java.util.HashMap.)) ; lib -> thread loading it, guarded by itself
+(defonce ^:private lib-waits (java.util.HashMap.)) ; thread -> lib it waits for, guarded by lib-owners
+
+(defn- acquire-lib
+  "Marks the current thread as loading a lib, waiting while another thread
+  loads it so threads requiring the same lib concurrently load it once.
+  Returns false if the current thread is already loading the lib. Throws if
+  the wait would close a cycle of threads each waiting for a lib loaded by
+  the next, as a single thread loading the same libs would"
+  [lib]
+  (let [thread (Thread/currentThread)
+        ^java.util.Map owners lib-owners
+        ^java.util.Map waits lib-waits]
+    (locking owners
+      (loop []
+        (let [owner (.get owners lib)]
+          (cond
+            (nil? owner) (do (.put owners lib thread) true)
+            (identical? owner thread) false
+            :else
+            (do
+              (loop [owner owner chain [lib]]
+                (if (identical? owner thread)
+                  (let [pending (map #(if (= % lib) (str "[ " (root-resource %) " ]") (root-resource %))
+                                     (conj chain lib))]
+                    (throw-if true "Cyclic load dependency: %s" (apply str (interpose "->" pending))))
+                  (when-let [waited (.get waits owner)]
+                    (recur (.get owners waited) (conj chain waited)))))
+              (.put waits thread lib)
+              (try
+                (.wait owners)
+                (finally
+                  (.remove waits thread)))
+              (recur))))))))
+
+(defn- release-lib
+  "Marks the current thread as no longer loading a lib"
+  [lib]
+  (locking lib-owners
+    (.remove ^java.util.Map lib-owners lib)
+    (.notifyAll ^Object lib-owners)))
+
+(defn- loading-lib
+  "Calls f with the current thread marked as loading a lib, see acquire-lib"
+  [lib f]
+  (let [acquired (acquire-lib lib)]
+    (try
+      (f)
+      (finally
+        (when acquired
+          (release-lib lib))))))
+
 (defn- load-one
   "Loads a lib given its name. If need-ns, ensures that the associated
   namespace exists after loading. If require, records the load so any
@@ -5734,7 +5804,10 @@
     (binding [*loading-verbosely* (or *loading-verbosely* verbose)]
       (if load
         (try
-          (load lib need-ns require)
+          (loading-lib lib
+            ; another thread may have loaded the lib while this one waited
+            #(when (or reload reload-all (not require) (not (contains? @*loaded-libs* lib)))
+               (load lib need-ns require)))
           (catch Exception e
             (when undefined-on-entry
               (remove-ns lib))
@@ -6203,6 +6276,25 @@
   Supported options:
   :elide-meta - a collection of metadata keys to elide during compilation.
   :disable-locals-clearing - set to true to disable clearing, useful for using a debugger
+  :constant-roots - set to true to read the roots of non-dynamic vars through
+  invokedynamic call sites invalidated when the root changes, classes are then
+  emitted as Java 7 class files and require Java 7 to load
+  :invokedynamic - set to true to link invocations of non-dynamic vars and
+  protocol methods through invokedynamic, classes are then emitted as Java 7
+  class files and require Java 7 to load, :direct-linking takes precedence
+  :lazy-roots - set to true to only load and construct a defn'd fn that closes
+  over nothing and has no primitive signatures the first time it is used, only
+  affects code compiled ahead of time as other code already loads the classes
+  :keyword-destructuring - set to true to compile keys of map destructuring as
+  keyword lookup sites, maps hinted as a record always read keys as fields
+  :split-methods - enabled by default, a fn or type with a method too large for
+  HotSpot to JIT compile is compiled a second time with code moved into helper
+  methods, set to false to disable
+  :warn-on-huge-methods - set to true to print a warning for methods that are
+  still too large to JIT compile, the methods defrecord generates are skipped
+  :singleton-fns - set to true to create fns that close over nothing once and
+  share the instance, so evaluating such a fn expression again returns an
+  identical fn, e.g. for identical? or dismissing events by fn
   Alpha, subject to change."
   {:added "1.4"})
 
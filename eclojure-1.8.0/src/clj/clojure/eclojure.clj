@@ -11,7 +11,8 @@
 (ns clojure.eclojure
   (:import clojure.lang.EventManager)
   (:import clojure.lang.LockingTransaction)
-  (:import clojure.lang.RT))
+  (:import clojure.lang.RT)
+  (:import clojure.lang.STMChangeFeed))
 
 
 ;;; Environment setup
@@ -21,7 +22,7 @@
 ;;; Event Handling Helper Functions
 (defn- ref? [sym]
   "Tests if a symbol is a reference"
-  (instance? clojure.lang.IRef sym))
+  (instance? clojure.lang.Ref sym))
 
 (defn extract-refs
   "Extract refs from a list of expressions and accumulate them in the acc list,
@@ -32,7 +33,7 @@
     (fn [acc elem]
       (cond
         ; Element var containing a ref
-        (and (ref? elem) (var? elem)) (conj acc @elem)
+        (and (var? elem) (ref? @elem)) (conj acc @elem)
         ; Element is a raw ref
         (ref? elem) (conj acc elem)
         ; Element is a symbol that could be a ref
@@ -45,10 +46,21 @@
                              (if (or (seq? elem-var) (vector? elem-var))
                                (extract-refs acc elem-var)
                                ; Symbol was neither a ref or sequence
-                               acc))))))
+                               acc))))
+        ; Element cannot contain a ref
+        :else acc))
     ; Removes nesting to only require recursion for vars with sequences
     acc (flatten body))))
 
+(defn- resolve-ref-var
+  "Resolves a symbol at macro expansion to the var it names, unless the var is
+  a macro, otherwise nil is returned. The value of the var is not checked as it
+  may be unbound or redefined before the code runs"
+  [sym]
+  (let [sym-var (try (resolve sym) (catch Exception e nil))]
+    (when (and (var? sym-var) (not (:macro (meta sym-var))))
+      sym-var)))
+
 
 ;;; Transactional Event Handling
 (defn stm-listen
@@ -67,19 +79,41 @@
   ([event-key] (EventManager/stmNotify event-key nil))
   ([event-key context] (EventManager/stmNotify event-key context)))
 
+(defn stm-has-listeners?
+  "Returns true if notifying event-key in the transaction would run any
+  transactional event, allowing the context to only be built when needed"
+  [event-key]
+  (EventManager/stmHasListeners event-key))
+
 (defmacro lock-refs
-  "Takes the appropriate locks on all extractable refs in body of code"
+  "Takes the appropriate locks on all extractable refs in body of code, refs in
+  the body are locked directly while vars and locals are checked at runtime"
   [func & body]
-  ; Extracts the lexical scoped symbols from the environment
-  (let [lexically-scoped-bindings (keys &env)
-    locking-fn (case func
-                 ensure #(ensure %)
-                 commute #(commute % identity)
-                 alter #(alter % identity)
-                 (throw (IllegalArgumentException. "func must be ensure, commute, or alter")))]
+  (let [lock-ref (case func
+                   ensure (fn [r] `(ensure ~r))
+                   commute (fn [r] `(commute ~r identity))
+                   alter (fn [r] `(alter ~r identity))
+                   (throw (IllegalArgumentException. "func must be ensure, commute, or alter")))
+        ; Extracts the lexical scoped symbols from the environment
+        lexically-scoped-bindings (keys &env)
+        lock-value (fn [value]
+                     (let [value-sym (gensym "value")
+                           ref-sym (gensym "ref")]
+                       `(let [~value-sym ~value]
+                          (if (instance? clojure.lang.Ref ~value-sym)
+                            ~(lock-ref value-sym)
+                            (when (sequential? ~value-sym)
+                              (doseq [~ref-sym (extract-refs '() ~value-sym)]
+                                ~(lock-ref ref-sym)))))))
+        ; Locals shadow vars so only free symbols are resolved
+        body-elems (remove (set lexically-scoped-bindings) (flatten body))
+        raw-refs (distinct (filter ref? body-elems))
+        ref-vars (distinct (keep #(when (symbol? %) (resolve-ref-var %)) body-elems))]
     `(do
-       (doseq [r# (extract-refs '() '~body ~@lexically-scoped-bindings)]
-         (~locking-fn r#))
+       ~@(map lock-ref raw-refs)
+       ~@(for [^clojure.lang.Var ref-var ref-vars]
+           (lock-value `(deref (var ~(symbol (str (.ns ref-var)) (str (.sym ref-var)))))))
+       ~@(map lock-value lexically-scoped-bindings)
        ~@body)))
 
 
@@ -117,23 +151,30 @@
 
 ;;; Ref Method Execution Functions
 (defmacro alter-run
-  "Executes a method on an object in a ref without changing the value of the ref using alter"
+  "Executes a method on an object in a ref without changing the value of the ref using alter,
+  returning the result of the method"
   [input-ref func & args]
-  `(with-local-vars [return-val# nil]
+  `(let [return-val# (volatile! nil)]
      (alter ~input-ref (fn [ref-val#]
-                         (var-set return-val# (~func ref-val# ~@args))
+                         (vreset! return-val# (~func ref-val# ~@args))
                          ref-val#))
-     return-val#))
+     @return-val#))
 
 (defmacro commute-run [input-ref func & args]
-  "Executes a method on an object in a ref without changing the value of the ref using commute.
+  "Executes a method on an object in a ref without changing the value of the ref using commute,
+  returning the result of the method.
   This function can only be used in the on-abort and on-commit events, a IllegalStateException
   is thrown if the function is used elsewhere due to the double execution nature of commute"
-  `(with-local-vars [return-val# nil]
+  `(let [return-val# (volatile! nil)]
      (commute ~input-ref (fn [ref-val#]
-                         (var-set return-val# (~func ref-val# ~@args))
+                         (when (identical? @return-val# return-val#)
+                           (throw (IllegalStateException. "commute-run executed again at commit")))
+                         (vreset! return-val# (~func ref-val# ~@args))
                          ref-val#))
-     return-val#))
+     (let [ret# @return-val#]
+       ; Marks the method as executed so executing it again at commit throws
+       (vreset! return-val# return-val#)
+       ret#)))
 
 
 ;;; JavaRef
@@ -167,9 +208,63 @@
   ([x & options] (setup-reference (java-ref x) options)))
 
 
+(defn undo-java-ref
+  "Creates and returns an UndoJavaRef holding a java.util.Map or
+  java.util.List that is mutated in place instead of copied. Inside a
+  transaction deref takes ownership of the value and returns a wrapper that
+  records each mutation in an undo log, which is rolled back if the
+  transaction aborts. Iterators and views of the wrapper are read only, and
+  commute is not supported as the function would be run twice. Takes the
+  same options as java-ref"
+  ([x] (new clojure.lang.UndoJavaRef x))
+  ([x & options] (setup-reference (undo-java-ref x) options)))
+
+(defn borrow
+  "Returns the value of a java-ref without taking ownership of it, unlike
+  deref the java-ref is not emptied and no write lock is taken. A borrow
+  waits for a transaction owning the value to finish, and other transactions
+  wait to take the value until the borrowing transaction stops. The
+  transaction retries if the value was replaced after its read point. The
+  value must only be read and must not escape the transaction"
+  [^clojure.lang.JavaRef r]
+  (.borrow r))
+
+
+;;; Change Feed
+(defn change-feed
+  "Starts publishing the refs written by each committed transaction to a
+  bounded feed keeping the last capacity transactions, returns the feed"
+  [capacity]
+  (LockingTransaction/setChangeFeed (STMChangeFeed. capacity)))
+
+(defn stop-change-feed
+  "Stops publishing committed transactions to the change feed"
+  []
+  (LockingTransaction/setChangeFeed nil))
+
+(defn change-feed-cursor
+  "Returns a cursor for a single consumer starting at the next transaction
+  published to the current change feed or the feed given"
+  ([] (change-feed-cursor (LockingTransaction/getChangeFeed)))
+  ([^STMChangeFeed feed]
+   (when-not feed
+     (throw (IllegalStateException. "No change feed is running")))
+   (.cursor feed)))
+
+(defn tail-change-feed
+  "Returns a vector of at most max-entries transactions published after the
+  cursor, each as a map of :commit-point and :changes with [ref oldval newval]"
+  [^clojure.lang.STMChangeFeed$Cursor cursor max-entries]
+  (mapv (fn [^clojure.lang.STMChangeFeed$Entry entry]
+          {:commit-point (.commitPoint entry) :changes (.changes entry)})
+        (.poll cursor max-entries)))
+
+
 ;;; Generic Event Handling
 (defn listen
-  "Registers a thread local event for the event identified by event-key"
+  "Registers a thread local event for the event identified by event-key, a
+  key such as :order/* listens to all keys in the order namespace and its
+  sub namespaces such as :order.payment/paid, while :* listens to all keys"
   [event-key event-fn & event-args]
   (EventManager/listen event-key event-fn event-args true false))
 
@@ -186,6 +281,12 @@
   ([event-key] (EventManager/notify event-key nil))
   ([event-key context] (EventManager/notify event-key context)))
 
+(defn has-listeners?
+  "Returns true if notifying event-key would run any global or thread local
+  event, allowing the context to only be built when needed"
+  [event-key]
+  (EventManager/hasListeners event-key))
+
 (defn dismiss
   "Dismisses an event identified by the combination of event-key and event-fn, "
   [event-key event-fn dismiss-from]
@@ -196,6 +297,380 @@
   []
   (EventManager/getContext))
 
+;;; Agents
+(defn set-agent-executor!
+  "Sets the executor used for all actions sent to the agent, overriding the
+  executors of send and send-off, nil restores the default behaviour. A group
+  of agents can share an executor such as a bounded-executor or ForkJoinPool"
+  [^clojure.lang.Agent a ^java.util.concurrent.Executor executor]
+  (.setExecutor a executor)
+  a)
+
+(defn set-agent-queue-limit!
+  "Limits the number of actions queued for the agent, sends to a full queue
+  are handled according to policy:
+
+  :fail throws a RejectedExecutionException to the sender (default)
+
+  :drop discards the action
+
+  :block waits until the agent completes an action and space is freed,
+  without polling. If the agent fails while the sender waits the sender
+  throws as send to a failed agent does, and an interrupted sender throws
+  an InterruptedException. Sends from a transaction or an action, where
+  blocking could deadlock the agent, are handled as :fail
+
+  Space is reserved atomically when an action is sent directly, so
+  concurrent senders never exceed the limit. Actions sent from a
+  transaction or another action are held until it completes and are only
+  checked against the limit when sent, so they can exceed the limit.
+  The :mean-queued-nanos of agent-metrics is measured from when an action
+  is enqueued, so time spent waiting for space or held is not included"
+  ([a limit] (set-agent-queue-limit! a limit :fail))
+  ([^clojure.lang.Agent a limit policy]
+   (.setQueueLimit a limit policy)
+   a))
+
+(defn set-agent-batch-size!
+  "Sets the number of queued actions the agent runs on the same thread before
+  yielding to its executor, larger batches avoid a handoff per action while
+  smaller batches are fairer to other agents sharing the executor. Actions
+  sent with a different executor always start a new batch"
+  [^clojure.lang.Agent a batch-size]
+  (.setActionBatch a batch-size)
+  a)
+
+(defn agent-metrics
+  "Returns a map with the current :queue-depth and :queue-limit of the agent,
+  the number of :completed and :rejected actions, and the :mean-queued-nanos
+  and :mean-run-nanos of the completed actions"
+  [^clojure.lang.Agent a]
+  (.getMetrics a))
+
+(defn bounded-executor
+  "Returns an executor with a fixed number of daemon threads for a group of
+  agents. An agent has at most one task in the executor, so the work queue is
+  bounded by the number of agents and never rejects tasks while the executor
+  is running, and actions are never run by the sending thread. Back-pressure
+  on senders is set per agent with the :block or :drop policy of
+  set-agent-queue-limit!"
+  [threads]
+  (let [counter (java.util.concurrent.atomic.AtomicLong.)]
+    (java.util.concurrent.ThreadPoolExecutor.
+      (int threads) (int threads) 60 java.util.concurrent.TimeUnit/SECONDS
+      (java.util.concurrent.LinkedBlockingQueue.)
+      (reify java.util.concurrent.ThreadFactory
+        (newThread [_ runnable]
+          (doto (Thread. runnable (str "eclojure-agent-bounded-pool-" (.getAndIncrement counter)))
+            (.setDaemon true)))))))
+
+
+;;; Atoms
+(defn set-atom-contention-mode!
+  "Sets how swaps of the atom handle contention, all modes back off after
+  repeated failed compare and sets:
+
+  :default does not collect metrics
+
+  :metrics counts swaps and failed compare and sets
+
+  :combining also collects metrics, and hands swaps that fail repeatedly to
+  a combining thread that applies all pending update functions as a batch
+  with a single compare and set, watches of combined swaps are notified by
+  the combining thread. Update functions see the dynamic bindings of the
+  swapping thread as agent actions do, but not its other thread-locals"
+  [^clojure.lang.Atom a mode]
+  (.setContentionMode a mode)
+  a)
+
+(defn atom-metrics
+  "Returns a map of the :swaps, :cas-failures, swaps :combined and the
+  :failure-rate of the atom, or nil if the atom is in the :default mode"
+  [^clojure.lang.Atom a]
+  (.getMetrics a))
+
+(defn striped-atom
+  "Creates an atom for commutative updates such as counters, swap! applies the
+  function to a partial value in a stripe selected by the current thread and
+  returns the new partial value, deref merges the partial values with merge
+  and caches the result until the next swap!. Each stripe starts as init which
+  must be an identity of merge, e.g. (striped-atom 0 +) or
+  (striped-atom {} (partial merge-with +)). Validators, watches and
+  compare-and-set! are not supported, and reset! is not atomic with concurrent swaps"
+  ([init merge] (clojure.lang.StripedAtom. init merge))
+  ([init merge stripes] (clojure.lang.StripedAtom. init merge (int stripes))))
+
+
+;;; Namespaces
+(defn- lib-source
+  "Returns the URL of the source of a lib, or nil if it has none"
+  [lib]
+  (let [path (.substring ^String (@#'clojure.core/root-resource lib) 1)]
+    (some #(RT/getResource (RT/baseLoader) (str path %)) [".clj" ".cljc"])))
+
+(defn- libspec-names
+  "Returns the names of the libs in a libspec or prefix list"
+  [spec]
+  (cond
+    (symbol? spec) [spec]
+    (@#'clojure.core/libspec? spec) [(first spec)]
+    (sequential? spec) (let [[prefix & specs] spec]
+                         (for [spec specs lib (libspec-names spec)]
+                           (symbol (str prefix \. lib))))
+    :else []))
+
+(defn- lib-dependencies
+  "Returns the libs required or used by the ns form of a lib, or nil if the
+  lib has no source or it does not start with an ns form"
+  [lib]
+  (when-let [^java.net.URL url (lib-source lib)]
+    (with-open [reader (java.io.PushbackReader.
+                         (java.io.InputStreamReader. (.openStream url) RT/UTF8))]
+      (let [form (try
+                   (binding [*read-eval* false]
+                     (read {:read-cond :allow :eof nil} reader))
+                   (catch Exception e nil))]
+        (when (and (seq? form) (= 'ns (first form)))
+          (distinct
+            (for [clause (drop 2 form)
+                  :when (and (seq? clause) (#{:require :use} (first clause)))
+                  spec (rest clause)
+                  lib (libspec-names spec)]
+              lib)))))))
+
+(defn- dependency-graph
+  "Returns a map from each lib that is not in loaded to the libs it depends on
+  that are not in loaded, including the dependencies of the dependencies"
+  [libs loaded]
+  (loop [pending (remove loaded libs) graph {}]
+    (if-let [[lib & pending] (seq pending)]
+      (if (contains? graph lib)
+        (recur pending graph)
+        (let [dependencies (remove loaded (lib-dependencies lib))]
+          (recur (concat pending dependencies) (assoc graph lib (set dependencies)))))
+      graph)))
+
+(defn- check-acyclic
+  "Throws an exception if libs in the dependency graph depend on each other,
+  as none of them would ever be loaded"
+  [graph]
+  (loop [graph graph]
+    (when (seq graph)
+      (let [roots (set (filter (comp empty? graph) (keys graph)))]
+        (when (empty? roots)
+          (throw (IllegalStateException.
+                   (str "Cyclic load dependency between " (apply str (interpose ", " (sort (keys graph))))))))
+        (recur (into {} (for [[lib dependencies] graph :when (not (roots lib))]
+                          [lib (remove roots dependencies)])))))))
+
+(defn- run-parallel
+  "Calls f with each lib in the dependency graph on a ForkJoinPool with the
+  given parallelism, a lib once f has returned for the libs it depends on.
+  The first exception thrown is rethrown once all started calls have
+  completed, and no calls are started after it"
+  [graph parallelism f]
+  (let [dependents (reduce (fn [dependents [lib dependencies]]
+                             (reduce #(update-in %1 [%2] conj lib) dependents dependencies))
+                           {} graph)
+        remaining (into {} (for [[lib dependencies] graph]
+                             [lib (java.util.concurrent.atomic.AtomicInteger. (count dependencies))]))
+        pool (java.util.concurrent.ForkJoinPool. parallelism)
+        done (java.util.concurrent.CountDownLatch. (count graph))
+        failure (atom nil)
+        start (fn start [lib]
+                (let [^Runnable run (bound-fn []
+                                      (try
+                                        (when-not @failure
+                                          (f lib))
+                                        (catch Throwable t
+                                          (compare-and-set! failure nil t)))
+                                      (doseq [dependent (dependents lib)]
+                                        (when (zero? (.decrementAndGet ^java.util.concurrent.atomic.AtomicInteger
+                                                                       (remaining dependent)))
+                                          (start dependent)))
+                                      (.countDown done))]
+                  (.execute pool run)))]
+    (try
+      (doseq [lib (filter (comp empty? graph) (keys graph))]
+        (start lib))
+      (.await done)
+      (finally
+        (.shutdown pool)))
+    (when-let [t @failure]
+      (throw t))
+    nil))
+
+(defn require-parallel
+  "Requires libs given as symbols, reading the ns forms of the libs and the
+  libs they depend on up front and loading independent namespaces
+  concurrently on a ForkJoinPool. A namespace is loaded after the namespaces
+  its ns form requires or uses, while libs only loaded by other code in a
+  namespace are loaded by it as by require. The first exception thrown is
+  rethrown once all started loads have completed"
+  [& libs]
+  (let [graph (doto (dependency-graph libs (loaded-libs)) check-acyclic)]
+    (run-parallel graph (.availableProcessors (Runtime/getRuntime)) require)))
+
+(def ^:private compile-id-block
+  "The number of ids reserved for each namespace compiled deterministically"
+  65536)
+
+(defn- move-tree
+  "Moves the files in the directory from into the directory to, replacing
+  existing files, in the order of their paths, and deletes from"
+  [^java.io.File from ^java.io.File to]
+  (let [from-path (.toPath from)
+        files (sort-by #(.toString (.relativize from-path (.toPath ^java.io.File %)))
+                       (filter #(.isFile ^java.io.File %) (file-seq from)))]
+    (doseq [^java.io.File file files]
+      (let [target (.toPath (java.io.File. to (.toString (.relativize from-path (.toPath file)))))]
+        (java.nio.file.Files/createDirectories (.getParent target)
+                                               (make-array java.nio.file.attribute.FileAttribute 0))
+        (java.nio.file.Files/move (.toPath file) target
+                                  (into-array java.nio.file.CopyOption
+                                              [java.nio.file.StandardCopyOption/REPLACE_EXISTING])))))
+  (doseq [^java.io.File file (reverse (file-seq from))]
+    (.delete file)))
+
+(defn compile-parallel
+  "Compiles libs given as symbols as by compile, compiling independent
+  namespaces concurrently on the given number of threads, a namespace after
+  the namespaces its ns form requires or uses. Each namespace is compiled
+  with its own class loader into its own directory, which is merged into
+  *compile-path* when the namespace is compiled. If deterministic is true the
+  namespaces take their generated names from blocks of ids reserved in the
+  order of their names, and are merged in that order once all have compiled,
+  so the output does not depend on how the threads were scheduled. Libs only
+  loaded by other code in a namespace are compiled with it as by compile"
+  [libs & {:keys [threads deterministic]
+           :or {threads (.availableProcessors (Runtime/getRuntime))}}]
+  (let [graph (doto (dependency-graph libs (reduce disj (loaded-libs) libs)) check-acyclic)
+        explicit (set libs)
+        order (vec (sort (keys graph)))
+        base (when deterministic
+               (RT/reserveIDs (* compile-id-block (count order))))
+        compile-path (java.io.File. ^String *compile-path*)
+        staging (into {} (map-indexed (fn [i lib] [lib (java.io.File. compile-path (str ".compile-" i))]) order))]
+    (try
+      (run-parallel graph threads
+                    (fn [lib]
+                      (let [^java.io.File dir (staging lib)]
+                        (.mkdirs dir)
+                        (with-bindings (merge {#'*compile-path* (.getPath dir)
+                                               clojure.lang.Compiler/LOADER (clojure.lang.RT/makeClassLoader)}
+                                              (when deterministic
+                                                {RT/ID_BLOCK (java.util.concurrent.atomic.AtomicInteger.
+                                                               (int (+ (long base) (* compile-id-block (.indexOf ^java.util.List order lib)))))}))
+                          ; another namespace may have loaded the lib while this one waited
+                          (@#'clojure.core/loading-lib lib
+                            #(when (or (explicit lib) (not (contains? (loaded-libs) lib)))
+                               (compile lib))))
+                        (when-not deterministic
+                          (move-tree dir compile-path)))))
+      (when deterministic
+        (doseq [lib order]
+          (move-tree (staging lib) compile-path)))
+      (finally
+        (doseq [^java.io.File dir (vals staging)]
+          (doseq [^java.io.File file (reverse (file-seq dir))]
+            (.delete file)))))
+    nil))
+
+;;; Transducers
+(def ^:private fused-steps
+  "The transducers that can be fused, each with the code of its state given
+  its arguments, and the code of its step given its arguments, state, the
+  names of the result and input, and a function returning the code of the
+  following steps given the name of their input"
+  {#'clojure.core/map
+   {:step (fn [[f] _ result input next]
+            (let [output (gensym "input")]
+              `(let [~output (~f ~input)] ~(next output))))}
+   #'clojure.core/filter
+   {:step (fn [[pred] _ result input next]
+            `(if (~pred ~input) ~(next input) ~result))}
+   #'clojure.core/remove
+   {:step (fn [[pred] _ result input next]
+            `(if (~pred ~input) ~result ~(next input)))}
+   #'clojure.core/keep
+   {:step (fn [[f] _ result input next]
+            (let [output (gensym "input")]
+              `(let [~output (~f ~input)] (if (nil? ~output) ~result ~(next output)))))}
+   #'clojure.core/take
+   {:state (fn [[n]] `(volatile! ~n))
+    :step (fn [_ nv result input next]
+            `(let [n# (long @~nv)
+                   ~result (if (pos? n#) ~(next input) ~result)]
+               (if (pos? (long (vswap! ~nv dec))) ~result (ensure-reduced ~result))))}
+   #'clojure.core/drop
+   {:state (fn [[n]] `(volatile! ~n))
+    :step (fn [_ nv result input next]
+            `(let [n# (long @~nv)]
+               (vswap! ~nv dec)
+               (if (pos? n#) ~result ~(next input))))}
+   #'clojure.core/take-while
+   {:step (fn [[pred] _ result input next]
+            `(if (~pred ~input) ~(next input) (reduced ~result)))}
+   #'clojure.core/drop-while
+   {:state (fn [_] `(volatile! true))
+    :step (fn [[pred] dv result input next]
+            `(if (and @~dv (~pred ~input))
+               ~result
+               (do (vreset! ~dv nil) ~(next input))))}})
+
+(defn- fused-step
+  "Returns the step of a core transducer form that can be fused, or nil"
+  [env form]
+  (when (and (seq? form) (symbol? (first form)) (not (contains? env (first form))))
+    (when-let [step (fused-steps (resolve env (first form)))]
+      (when (= 1 (count (rest form)))
+        (assoc step :form form)))))
+
+(defn- fuse-steps
+  "Returns a transducer form running a sequence of steps in one reducing function"
+  [steps]
+  (let [steps (for [step steps]
+                (assoc step
+                  :args (vec (repeatedly (count (rest (:form step))) #(gensym "arg")))
+                  :state-name (gensym "state")))
+        rf (gensym "rf")
+        result (gensym "result")
+        body (fn body [steps input]
+               (if-let [[{:keys [step args state-name]} & steps] (seq steps)]
+                 (step args state-name result input #(body steps %))
+                 `(~rf ~result ~input)))
+        input (gensym "input")]
+    `(let [~@(mapcat #(interleave (:args %) (rest (:form %))) steps)]
+       (fn [~rf]
+         (let [~@(mapcat #(when-let [state (:state %)] [(:state-name %) (state (:args %))]) steps)]
+           (fn
+             ([] (~rf))
+             ([~result] (~rf ~result))
+             ([~result ~input] ~(body steps input))))))))
+
+(defmacro fuse
+  "Returns a transducer equivalent to composing the transducer forms with comp,
+  where each run of map, filter, remove, keep, take, drop, take-while and
+  drop-while transducers is fused into a single reducing function that does
+  not invoke the reducing functions of the transducers in between. The
+  arguments of the transducers are evaluated once like with comp, and a
+  single (comp ...) form can be given in place of the forms. A fused
+  transducer only takes a single input for each step"
+  [& xforms]
+  (let [xforms (if (and (= 1 (count xforms)) (seq? (first xforms)) (symbol? (ffirst xforms))
+                        (= #'clojure.core/comp (resolve &env (ffirst xforms))))
+                 (rest (first xforms))
+                 xforms)
+        parts (partition-by #(boolean (fused-step &env %)) xforms)
+        parts (mapcat #(if (fused-step &env (first %))
+                         [(fuse-steps (map (partial fused-step &env) %))]
+                         %)
+                      parts)]
+    (if (= 1 (count parts))
+      (first parts)
+      `(comp ~@parts))))
+
+
 ;;; Transactional Control
 (defn retry
   "Aborts a transaction and waits until any of the specified refs have changed"
@@ -220,6 +695,12 @@
   [& body]
   (RT/stmOrElse true body))
 
+(defn serializable
+  "Validates all refs read by the transaction at commit and retries if any of
+  them were changed after the read point, preventing write skew without ensure"
+  []
+  (RT/stmSerializable))
+
 (defn terminate
   "Returns the context for both types of events, returns nil if no context exists"
   []
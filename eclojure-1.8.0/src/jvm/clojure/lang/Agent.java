@@ -1,3 +1,4 @@
+// eClojure
 /**
  *   Copyright (c) Rich Hickey. All rights reserved.
  *   The use and distribution terms for this software are covered by the
@@ -12,10 +13,15 @@
 
 package clojure.lang;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -36,12 +42,37 @@ static class ActionQueue {
 static final Keyword CONTINUE = Keyword.intern(null, "continue");
 static final Keyword FAIL = Keyword.intern(null, "fail");
 
+// Policies for sends to an agent with a full queue
+static final Keyword BLOCK = Keyword.intern(null, "block");
+static final Keyword DROP = Keyword.intern(null, "drop");
+
 volatile Object state;
     AtomicReference<ActionQueue> aq = new AtomicReference<ActionQueue>(ActionQueue.EMPTY);
 
     volatile Keyword errorMode = CONTINUE;
     volatile IFn errorHandler = null;
 
+    // Executor used for all actions instead of the one given by send or send-off
+    volatile Executor executor = null;
+    volatile int queueLimit = Integer.MAX_VALUE;
+    volatile Keyword queuePolicy = FAIL;
+
+    // Actions queued or reserved by senders, compared to the limit so reservations are atomic
+    final AtomicInteger queueSize = new AtomicInteger();
+
+    // Monitor senders blocked on a full queue wait on, notified when an action leaves the queue
+    final Object queueSpace = new Object();
+    volatile int blockedSenders = 0;
+
+    // Number of queued actions run on the same thread before the agent yields to the executor
+    volatile int actionBatch = 1;
+
+    // Metrics accumulated over all completed actions
+    final AtomicLong completedActions = new AtomicLong();
+    final AtomicLong rejectedActions = new AtomicLong();
+    final AtomicLong queuedNanos = new AtomicLong();
+    final AtomicLong runNanos = new AtomicLong();
+
 final private static AtomicLong sendThreadPoolCounter = new AtomicLong(0);
 
 final private static AtomicLong sendOffThreadPoolCounter = new AtomicLong(0);
@@ -75,6 +106,10 @@ static class Action implements Runnable{
 	final IFn fn;
 	final ISeq args;
 	final Executor exec;
+	// set when enqueued, so time blocked on a full queue or held by a transaction is not counted
+	long dispatchTime;
+	// true if the sender reserved space in the queue before enqueueing
+	boolean reserved;
 
 
 	public Action(Agent agent, IFn fn, ISeq args, Executor exec){
@@ -103,11 +138,33 @@ static class Action implements Runnable{
 	}
 
 	static void doRun(Action action){
+		//actions queued for the same executor are drained in batches on this thread, the
+		//agent is resubmitted to the executor after a batch to be fair to other agents
+		int batch = action.agent.actionBatch;
+		for(int i = 1; ; i++)
+			{
+			ActionQueue next = runAction(action);
+			if(next.error != null || next.q.count() == 0)
+				return;
+
+			Action nextAction = (Action) next.q.peek();
+			if(i >= batch || nextAction.exec != action.exec)
+				{
+				nextAction.execute();
+				return;
+				}
+			action = nextAction;
+			}
+	}
+
+	//runs the action and pops it from the queue, returns the queue after the pop
+	static ActionQueue runAction(Action action){
 		try
 			{
 			nested.set(PersistentVector.EMPTY);
 
 			Throwable error = null;
+			long startTime = System.nanoTime();
 			try
 				{
 				Object oldval = action.agent.state;
@@ -119,6 +176,9 @@ static class Action implements Runnable{
 				{
 				error = e;
 				}
+			action.agent.completedActions.incrementAndGet();
+			action.agent.queuedNanos.addAndGet(startTime - action.dispatchTime);
+			action.agent.runNanos.addAndGet(System.nanoTime() - startTime);
 
 			if(error == null)
 				{
@@ -126,7 +186,10 @@ static class Action implements Runnable{
 				}
 			else
 				{
-				nested.set(null); // allow errorHandler to send
+				//sends of the errorHandler are held as for an action and enqueued before the failed
+				//action is popped, so a send to this agent is checked against its limit instead of
+				//blocking this thread on space that is only freed by the pop
+				nested.set(PersistentVector.EMPTY);
 				if(action.agent.errorHandler != null)
 					{
 					try
@@ -135,6 +198,7 @@ static class Action implements Runnable{
 						}
 					catch(Throwable e) {} // ignore errorHandler errors
 					}
+				releasePendingSends();
 				if(action.agent.errorMode == CONTINUE)
 					{
 					error = null;
@@ -149,9 +213,8 @@ static class Action implements Runnable{
 				next = new ActionQueue(prior.q.pop(), error);
 				popped = action.agent.aq.compareAndSet(prior, next);
 				}
-
-			if(error == null && next.q.count() > 0)
-				((Action) next.q.peek()).execute();
+			action.agent.releaseQueueSpace(1);
+			return next;
 			}
 		finally
 			{
@@ -213,7 +276,7 @@ synchronized public Object restart(Object newState, boolean clearActions){
 	state = newState;
 
 	if(clearActions)
-		aq.set(ActionQueue.EMPTY);
+		releaseQueueSpace(aq.getAndSet(ActionQueue.EMPTY).q.count());
 	else
 		{
 		boolean restarted = false;
@@ -237,12 +300,127 @@ public Object dispatch(IFn fn, ISeq args, Executor exec) {
 		{
 		throw Util.runtimeException("Agent is failed, needs restart", error);
 		}
-	Action action = new Action(this, fn, args, exec);
+	boolean direct = !LockingTransaction.isRunning() && nested.get() == null;
+	if(!reserveQueueSpace(direct))
+		return this;
+	Executor agentExecutor = executor;
+	Action action = new Action(this, fn, args, agentExecutor != null ? agentExecutor : exec);
+	action.reserved = direct;
 	dispatchAction(action);
 
 	return this;
 }
 
+//space is reserved when an action is sent directly, so concurrent senders never exceed the limit,
+//actions sent from transactions or other actions are only checked against the limit as they
+//may never be enqueued, so they never fail when they are enqueued later and can exceed the limit
+private boolean reserveQueueSpace(boolean direct){
+	if(direct ? tryReserve() : queueSize.get() < queueLimit)
+		return true;
+
+	Keyword policy = queuePolicy;
+	//blocking is only safe outside of transactions and actions as they would block the agent
+	if(policy == BLOCK && direct)
+		{
+		awaitQueueSpace();
+		return true;
+		}
+	rejectedActions.incrementAndGet();
+	if(policy == DROP)
+		return false;
+	throw new RejectedExecutionException("Agent queue is full, limit is " + queueLimit);
+}
+
+private boolean tryReserve(){
+	for(;;)
+		{
+		int count = queueSize.get();
+		if(count >= queueLimit)
+			return false;
+		if(queueSize.compareAndSet(count, count + 1))
+			return true;
+		}
+}
+
+//waits until space is reserved, the runner notifies the blocked senders when an action leaves
+//the queue and as the count is checked holding the monitor no notification is missed
+private void awaitQueueSpace(){
+	synchronized(queueSpace)
+		{
+		blockedSenders++;
+		try
+			{
+			for(;;)
+				{
+				Throwable error = getError();
+				if(error != null)
+					throw Util.runtimeException("Agent is failed, needs restart", error);
+				if(tryReserve())
+					return;
+				queueSpace.wait();
+				}
+			}
+		catch(InterruptedException e)
+			{
+			throw Util.sneakyThrow(e);
+			}
+		finally
+			{
+			blockedSenders--;
+			}
+		}
+}
+
+void releaseQueueSpace(int count){
+	queueSize.addAndGet(-count);
+	if(blockedSenders > 0)
+		{
+		synchronized(queueSpace)
+			{
+			queueSpace.notifyAll();
+			}
+		}
+}
+
+public void setExecutor(Executor executor){
+	this.executor = executor;
+}
+
+public Executor getExecutor(){
+	return executor;
+}
+
+public void setActionBatch(int batch){
+	if(batch < 1)
+		throw new IllegalArgumentException("The action batch size must be positive");
+	this.actionBatch = batch;
+}
+
+public int getActionBatch(){
+	return actionBatch;
+}
+
+public void setQueueLimit(int limit, Keyword policy){
+	if(limit < 1)
+		throw new IllegalArgumentException("The queue limit must be positive");
+	if(policy != FAIL && policy != DROP && policy != BLOCK)
+		throw new IllegalArgumentException("The queue policy must be either :fail, :drop or :block");
+	this.queuePolicy = policy;
+	this.queueLimit = limit;
+	releaseQueueSpace(0);
+}
+
+public IPersistentMap getMetrics(){
+	long completed = completedActions.get();
+	return RT.map(
+		Keyword.intern(null, "queue-depth"), getQueueCount(),
+		Keyword.intern(null, "queue-limit"), queueLimit == Integer.MAX_VALUE ? null : queueLimit,
+		Keyword.intern(null, "completed"), completed,
+		Keyword.intern(null, "rejected"), rejectedActions.get(),
+		Keyword.intern(null, "mean-queued-nanos"), completed == 0 ? 0 : queuedNanos.get() / completed,
+		Keyword.intern(null, "mean-run-nanos"), completed == 0 ? 0 : runNanos.get() / completed);
+}
+
 static void dispatchAction(Action action){
 	LockingTransaction trans = LockingTransaction.getRunning();
 	if(trans != null)
@@ -255,7 +433,61 @@ static void dispatchAction(Action action){
 		action.agent.enqueue(action);
 }
 
+//dispatches the actions of a committed transaction, the actions of each agent are enqueued
+//with a single compare and set in the order they were sent
+static void dispatchActions(List<Action> actions){
+	if(actions.size() == 1 || nested.get() != null)
+		{
+		for(int i = 0; i < actions.size(); i++)
+			dispatchAction(actions.get(i));
+		return;
+		}
+
+	LinkedHashMap<Agent, ArrayList<Action>> grouped = new LinkedHashMap<Agent, ArrayList<Action>>();
+	for(int i = 0; i < actions.size(); i++)
+		{
+		Action action = actions.get(i);
+		ArrayList<Action> agentActions = grouped.get(action.agent);
+		if(agentActions == null)
+			grouped.put(action.agent, agentActions = new ArrayList<Action>());
+		agentActions.add(action);
+		}
+	for(ArrayList<Action> agentActions : grouped.values())
+		agentActions.get(0).agent.enqueueAll(agentActions);
+}
+
+void enqueueAll(ArrayList<Action> actions){
+	long dispatchTime = System.nanoTime();
+	int unreserved = 0;
+	for(int i = 0; i < actions.size(); i++)
+		{
+		Action action = actions.get(i);
+		action.dispatchTime = dispatchTime;
+		if(!action.reserved)
+			unreserved++;
+		}
+	queueSize.addAndGet(unreserved);
+
+	boolean queued = false;
+	ActionQueue prior = null;
+	while(!queued)
+		{
+		prior = aq.get();
+		IPersistentStack q = prior.q;
+		for(int i = 0; i < actions.size(); i++)
+			q = (IPersistentStack) q.cons(actions.get(i));
+		queued = aq.compareAndSet(prior, new ActionQueue(q, prior.error));
+		}
+
+	if(prior.q.count() == 0 && prior.error == null)
+		actions.get(0).execute();
+}
+
 void enqueue(Action action){
+	action.dispatchTime = System.nanoTime();
+	if(!action.reserved)
+		queueSize.incrementAndGet();
+
 	boolean queued = false;
 	ActionQueue prior = null;
 	while(!queued)
@@ -1,3 +1,4 @@
+// eClojure
 /**
  *   Copyright (c) Rich Hickey. All rights reserved.
  *   The use and distribution terms for this software are covered by the
@@ -16,6 +17,11 @@ import java.util.concurrent.atomic.AtomicReference;
 
 final public class Atom extends ARef implements IAtom{
 final AtomicReference state;
+volatile AtomContention contention = null;
+
+static final Keyword DEFAULT = Keyword.intern(null, "default");
+static final Keyword METRICS = Keyword.intern(null, "metrics");
+static final Keyword COMBINING = Keyword.intern(null, "combining");
 
 public Atom(Object state){
 	this.state = new AtomicReference(state);
@@ -31,7 +37,10 @@ public Object deref(){
 }
 
 public Object swap(IFn f) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null)
+		return c.swap(this, f, AtomContention.NOARGS);
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.invoke(v);
@@ -41,11 +50,15 @@ public Object swap(IFn f) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		AtomContention.backoff(failures);
 		}
 }
 
 public Object swap(IFn f, Object arg) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null)
+		return c.swap(this, f, new Object[]{arg});
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.invoke(v, arg);
@@ -55,11 +68,15 @@ public Object swap(IFn f, Object arg) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		AtomContention.backoff(failures);
 		}
 }
 
 public Object swap(IFn f, Object arg1, Object arg2) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null)
+		return c.swap(this, f, new Object[]{arg1, arg2});
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.invoke(v, arg1, arg2);
@@ -69,11 +86,15 @@ public Object swap(IFn f, Object arg1, Object arg2) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		AtomContention.backoff(failures);
 		}
 }
 
 public Object swap(IFn f, Object x, Object y, ISeq args) {
-	for(; ;)
+	AtomContention c = contention;
+	if(c != null)
+		return c.swap(this, f, RT.toArray(RT.listStar(x, y, args)));
+	for(int failures = 0; ; failures++)
 		{
 		Object v = deref();
 		Object newv = f.applyTo(RT.listStar(v, x, y, args));
@@ -83,6 +104,7 @@ public Object swap(IFn f, Object x, Object y, ISeq args) {
 			notifyWatches(v, newv);
 			return newv;
 			}
+		AtomContention.backoff(failures);
 		}
 }
 
@@ -94,6 +116,22 @@ public boolean compareAndSet(Object oldv, Object newv){
 	return ret;
 }
 
+public void setContentionMode(Keyword mode){
+	if(mode == DEFAULT)
+		contention = null;
+	else if(mode == METRICS)
+		contention = new AtomContention(false);
+	else if(mode == COMBINING)
+		contention = new AtomContention(true);
+	else
+		throw new IllegalArgumentException("The contention mode must be either :default, :metrics or :combining");
+}
+
+public IPersistentMap getMetrics(){
+	AtomContention c = contention;
+	return c == null ? null : c.getMetrics();
+}
+
 public Object reset(Object newval){
 	Object oldval = state.get();
 	validate(newval);
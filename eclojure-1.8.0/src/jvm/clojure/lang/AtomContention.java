@@ -0,0 +1,230 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Contention handling for an Atom, counting swaps and failed compare and sets and optionally
+ * combining the update functions of swaps that repeatedly fail into batches applied by one thread,
+ * the counters are striped so counting does not add a shared write to every swap
+ */
+class AtomContention {
+    static final Object[] NOARGS = new Object[0];
+
+    /**
+     * Failed compare and sets before yielding, parking, or handing the update to the combiner
+     */
+    static final int YIELD_FAILURES = 4;
+    static final int PARK_FAILURES = 16;
+    static final int COMBINE_FAILURES = 2;
+
+    /**
+     * Times a swap waiting for the combiner yields before parking until its request is applied
+     */
+    static final int COMBINE_SPINS = 16;
+
+    private final boolean combining;
+    private final StripedCounter swaps = new StripedCounter();
+    private final StripedCounter casFailures = new StripedCounter();
+    private final StripedCounter combinedSwaps = new StripedCounter();
+    private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<Request>();
+    private final ReentrantLock combiner = new ReentrantLock();
+
+    /**
+     * A swap waiting to be applied by the combiner with the bindings of the swapping thread, the frame
+     * is not cloned as the swapping thread waits until the swap is applied
+     */
+    private static class Request {
+        final IFn fn;
+        final Object[] args;
+        final Object frame = Var.getThreadBindingFrame();
+        final Thread thread = Thread.currentThread();
+        Object oldval;
+        Object newval;
+        Throwable error;
+        volatile boolean done;
+
+        Request(IFn fn, Object[] args) {
+            this.fn = fn;
+            this.args = args;
+        }
+
+        Object result() {
+            if (this.error != null) {
+                throw Util.sneakyThrow(this.error);
+            }
+            return this.newval;
+        }
+    }
+
+    AtomContention(boolean combining) {
+        this.combining = combining;
+    }
+
+    /**
+     * Backs off after a failed compare and set, first by yielding and then by parking
+     *
+     * @param failures The number of compare and sets that failed for the current swap
+     */
+    static void backoff(int failures) {
+        if (failures >= PARK_FAILURES) {
+            LockSupport.parkNanos(1L << Math.min(failures - PARK_FAILURES, 10));
+        } else if (failures >= YIELD_FAILURES) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Applies a function to the value of the Atom, counting the failed compare and sets
+     *
+     * @param atom The Atom to swap
+     * @param fn   The update function
+     * @param args The arguments given to the function after the value of the Atom
+     *
+     * @return     The new value of the Atom
+     */
+    Object swap(Atom atom, IFn fn, Object[] args) {
+        this.swaps.increment();
+        for (int failures = 0; ; failures++) {
+            if (this.combining && failures >= COMBINE_FAILURES) {
+                return combine(atom, new Request(fn, args));
+            }
+
+            Object v = atom.deref();
+            Object newv = apply(fn, v, args);
+            atom.validate(newv);
+            if (atom.state.compareAndSet(v, newv)) {
+                atom.notifyWatches(v, newv);
+                return newv;
+            }
+            this.casFailures.increment();
+            backoff(failures);
+        }
+    }
+
+    /**
+     * Queues the request and waits until it has been applied by the thread holding the combiner,
+     * a waiting thread yields a bounded number of times and then parks until it is unparked by the
+     * combiner applying its request or handing the combiner over to it
+     */
+    private Object combine(Atom atom, Request request) {
+        this.combinedSwaps.increment();
+        this.pending.add(request);
+        for (int spins = 0; ! request.done; spins++) {
+            if (this.combiner.tryLock()) {
+                try {
+                    while ( ! request.done) {
+                        applyPending(atom);
+                    }
+                } finally {
+                    this.combiner.unlock();
+                }
+                // A request queued after the last batch is applied by its thread taking the combiner
+                Request next = this.pending.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.thread);
+                }
+            } else if (spins < COMBINE_SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        return request.result();
+    }
+
+    /**
+     * Applies all pending requests in order and publishes the result with a single compare and set
+     */
+    private void applyPending(Atom atom) {
+        ArrayList<Request> batch = new ArrayList<Request>();
+        Request request;
+        while ((request = this.pending.poll()) != null) {
+            batch.add(request);
+        }
+
+        // Swaps by threads that are not combining can still change the Atom, so the batch is reapplied
+        Object frame = Var.getThreadBindingFrame();
+        Object v;
+        try {
+            for (;;) {
+                v = atom.deref();
+                Object current = v;
+                for (int i = 0; i < batch.size(); i++) {
+                    Request r = batch.get(i);
+                    try {
+                        Var.resetThreadBindingFrame(r.frame);
+                        Object newv = apply(r.fn, current, r.args);
+                        atom.validate(newv);
+                        r.oldval = current;
+                        r.newval = newv;
+                        r.error = null;
+                        current = newv;
+                    } catch (Throwable e) {
+                        r.error = e;
+                    }
+                }
+                if (atom.state.compareAndSet(v, current)) {
+                    break;
+                }
+                this.casFailures.increment();
+            }
+        } finally {
+            Var.resetThreadBindingFrame(frame);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            Request r = batch.get(i);
+            r.done = true;
+            LockSupport.unpark(r.thread);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Request r = batch.get(i);
+            if (r.error == null) {
+                atom.notifyWatches(r.oldval, r.newval);
+            }
+        }
+    }
+
+    private static Object apply(IFn fn, Object v, Object[] args) {
+        switch (args.length) {
+            case 0:
+                return fn.invoke(v);
+            case 1:
+                return fn.invoke(v, args[0]);
+            case 2:
+                return fn.invoke(v, args[0], args[1]);
+            default:
+                return fn.applyTo(RT.cons(v, ArraySeq.create(args)));
+        }
+    }
+
+    /**
+     * Returns the metrics collected for the Atom
+     *
+     * @return A map of swaps, failed compare and sets, swaps applied by the combiner, and the failure rate
+     */
+    IPersistentMap getMetrics() {
+        long swapCount = this.swaps.sum();
+        long failureCount = this.casFailures.sum();
+        return RT.map(
+            Keyword.intern(null, "swaps"), swapCount,
+            Keyword.intern(null, "cas-failures"), failureCount,
+            Keyword.intern(null, "combined"), this.combinedSwaps.sum(),
+            Keyword.intern(null, "failure-rate"), swapCount == 0 ? 0.0 : (double) failureCount / swapCount);
+    }
+}
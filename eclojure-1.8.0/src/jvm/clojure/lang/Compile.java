@@ -1,3 +1,4 @@
+// eClojure
 /**
  *   Copyright (c) Rich Hickey. All rights reserved.
  *   The use and distribution terms for this software are covered by the
@@ -18,18 +19,24 @@ import java.io.IOException;
 // Compiles libs and generates class files stored within the directory
 // named by the Java System property "clojure.compile.path". Arguments are
 // strings naming the libs to be compiled. The libs and compile-path must
-// all be within CLASSPATH.
+// all be within CLASSPATH. Independent libs are compiled in parallel when the
+// Java System property "clojure.compile.threads" is above one, and the output
+// is independent of how the threads were scheduled when the property
+// "clojure.compile.deterministic" is true.
 
 public class Compile{
 
 private static final String PATH_PROP = "clojure.compile.path";
 private static final String REFLECTION_WARNING_PROP = "clojure.compile.warn-on-reflection";
 private static final String UNCHECKED_MATH_PROP = "clojure.compile.unchecked-math";
+private static final String THREADS_PROP = "clojure.compile.threads";
+private static final String DETERMINISTIC_PROP = "clojure.compile.deterministic";
 
 private static final Var compile_path = RT.var("clojure.core", "*compile-path*");
 private static final Var compile = RT.var("clojure.core", "compile");
 private static final Var warn_on_reflection = RT.var("clojure.core", "*warn-on-reflection*");
 private static final Var unchecked_math = RT.var("clojure.core", "*unchecked-math*");
+private static final Var require = RT.var("clojure.core", "require");
 
 public static void main(String[] args) throws IOException{
 
@@ -53,6 +60,8 @@ public static void main(String[] args) throws IOException{
         uncheckedMath = Boolean.TRUE;
     else if("warn-on-boxed".equals(uncheckedMathProp))
         uncheckedMath = Keyword.intern("warn-on-boxed");
+    int threads = Integer.parseInt(System.getProperty(THREADS_PROP, "1"));
+    boolean deterministic = System.getProperty(DETERMINISTIC_PROP, "false").equals("true");
 
 	try
 		{
@@ -60,12 +69,30 @@ public static void main(String[] args) throws IOException{
                        warn_on_reflection, warnOnReflection,
                        unchecked_math, uncheckedMath));
 
-		for(String lib : args)
-        {
-            out.write("Compiling " + lib + " to " + path + "\n");
-            out.flush();
-            compile.invoke(Symbol.intern(lib));
-        }
+		if(threads > 1)
+			{
+			PersistentVector libs = PersistentVector.EMPTY;
+			for(String lib : args)
+				{
+				out.write("Compiling " + lib + " to " + path + "\n");
+				libs = libs.cons(Symbol.intern(lib));
+				}
+			out.write("Using " + threads + " threads" + (deterministic ? " with deterministic output" : "") + "\n");
+			out.flush();
+			require.invoke(Symbol.intern("clojure.eclojure"));
+			RT.var("clojure.eclojure", "compile-parallel").invoke(libs,
+			        Keyword.intern("threads"), threads,
+			        Keyword.intern("deterministic"), deterministic);
+			}
+		else
+			{
+			for(String lib : args)
+				{
+				out.write("Compiling " + lib + " to " + path + "\n");
+				out.flush();
+				compile.invoke(Symbol.intern(lib));
+				}
+			}
 		}
 	finally
 		{
@@ -0,0 +1,408 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of scripts compiled by RT.load, enabled by setting the system property
+ * clojure.compile.cache to a directory. A script missing from the cache is compiled as by AOT
+ * compilation into a directory named by the hash of its source, the Clojure version, the compiler
+ * options and its dependencies, and later loads define the classes from the directory instead of
+ * reading, macroexpanding and evaluating each form. As require only loads a namespace once, the
+ * scripts loaded before and while compiling are all recorded as dependencies with the hash of
+ * their source, and a change to any of them invalidates the compiled script. Namespaces loaded
+ * from ahead of time compiled classes are recorded by the URL and modification time of their
+ * loader class, as a macro or a direct linked function can change without changing its hash.
+ * Compiling a new version of a script deletes its versions whose dependencies have changed, the
+ * cache can otherwise be cleared by deleting its directory while no runtime is using it.
+ */
+public class CompileCache {
+    static final String DEPENDENCIES_FILE = "dependencies";
+
+    /**
+     * The directory of the cache, the cache is disabled if the root is null
+     */
+    static final public Var CACHE_PATH = Var.create(System.getProperty("clojure.compile.cache")).setDynamic();
+
+    /**
+     * True while a script is compiled into the cache, so nested loads are cached separately
+     */
+    static final Var COMPILING = Var.create(null).setDynamic();
+
+    /**
+     * Hash of the source of each script loaded through the cache by this runtime, or the stamp of
+     * the loader class of each namespace loaded ahead of time compiled while the cache is enabled
+     */
+    private static final ConcurrentHashMap<String, String> LOADED = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Hash of the source of each script read by this runtime, reused until the script is modified
+     */
+    private static final ConcurrentHashMap<String, Source> SOURCES = new ConcurrentHashMap<String, Source>();
+
+    private static class Source {
+        final long modified;
+        final String hash;
+
+        Source(long modified, String hash) {
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Class loader defining the classes of a cached script from its directory, the classes are
+     * defined before looking in the shared class cache as it might hold a previous version
+     */
+    static class CachedClassLoader extends DynamicClassLoader {
+        private final File directory;
+
+        CachedClassLoader(File directory, ClassLoader parent) {
+            super(parent);
+            this.directory = directory;
+        }
+
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class c = findLoadedClass(name);
+            if (c == null) {
+                File classFile = new File(this.directory, name.replace('.', File.separatorChar) + ".class");
+                if ( ! classFile.isFile()) {
+                    return super.loadClass(name, resolve);
+                }
+                try {
+                    byte[] bytes = read(new FileInputStream(classFile));
+                    if (name.endsWith(RT.LOADER_SUFFIX)) {
+                        // RT.load would take a loader class in the shared cache for an AOT compiled script
+                        c = defineClass(name, bytes, 0, bytes.length);
+                    } else {
+                        c = defineClass(name, bytes, null);
+                    }
+                } catch (IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+            }
+            if (resolve) {
+                resolveClass(c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Checks if scripts should be loaded through the cache, which is not the case while compiling
+     * ahead of time as the classes must then be written to *compile-path*
+     *
+     * @return True if a cache directory is set and files are only compiled for the cache
+     */
+    static boolean isEnabled() {
+        return CACHE_PATH.deref() != null
+            && ( ! RT.booleanCast(Compiler.COMPILE_FILES.deref()) || COMPILING.deref() != null);
+    }
+
+    /**
+     * Loads a script from the cache if it and its dependencies are unchanged, otherwise the script
+     * is compiled and loaded while its classes are written to the cache
+     *
+     * @param scriptbase The path of the script without an extension
+     * @param scriptfile The path of the script on the classpath
+     */
+    static void load(String scriptbase, String scriptfile) throws IOException, ClassNotFoundException {
+        URL url = RT.getResource(RT.baseLoader(), scriptfile);
+        if (url == null) {
+            throw new FileNotFoundException("Could not locate Clojure resource on classpath: " + scriptfile);
+        }
+        byte[] source = read(url.openStream());
+        String hash = hash(source);
+        SOURCES.put(scriptfile, new Source(RT.lastModified(url, scriptfile), hash));
+
+        File scripts = new File((String) CACHE_PATH.deref(), scriptbase);
+        File versions = new File(scripts, hash(key(scriptfile, hash).getBytes(RT.UTF8)));
+        File directory = findValid(versions);
+        if (directory != null) {
+            loadCached(directory, scriptbase);
+        } else {
+            compile(versions, scriptfile, source);
+        }
+        LOADED.put(scriptfile, hash);
+    }
+
+    /**
+     * Records a namespace loaded from its ahead of time compiled loader class as a dependency
+     *
+     * @param classfile The path of the loader class on the classpath
+     * @param url       The URL the loader class was found at
+     */
+    static void loadedClass(String classfile, URL url) throws IOException {
+        LOADED.put(classfile, stamp(url, classfile));
+    }
+
+    /**
+     * Everything other than the source and the dependencies that changes the compiled classes
+     */
+    private static String key(String scriptfile, String hash) {
+        return scriptfile + " " + hash
+            + " " + RT.printString(RT.var("clojure.core", "*clojure-version*").deref())
+            + " " + RT.printString(Compiler.COMPILER_OPTIONS.deref())
+            + " " + RT.printString(RT.UNCHECKED_MATH.deref())
+            + " " + RT.printString(RT.ASSERT.deref())
+            + " " + RT.printString(RT.DATA_READERS.deref());
+    }
+
+    /**
+     * Returns the version of a script compiled with dependencies matching their current source,
+     * or null if none exists, a version is kept for each set of dependencies it was compiled with
+     */
+    private static File findValid(File versions) throws IOException {
+        File[] directories = versions.listFiles();
+        if (directories == null) {
+            return null;
+        }
+        for (File directory : directories) {
+            if ( ! directory.getName().startsWith(".") && isValid(directory)) {
+                return directory;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a script was compiled into directory and that its dependencies are unchanged
+     */
+    private static boolean isValid(File directory) throws IOException {
+        File dependencies = new File(directory, DEPENDENCIES_FILE);
+        if ( ! dependencies.isFile()) {
+            return false;
+        }
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(dependencies), RT.UTF8));
+        } catch (FileNotFoundException e) {
+            // deleted by another runtime pruning the script
+            return false;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                String scriptfile = line.substring(space + 1);
+                if ( ! line.substring(0, space).equals(currentHash(scriptfile))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the hash of the current source of a script or the stamp of a loader class, or null
+     * if the script or class no longer exists
+     */
+    private static String currentHash(String scriptfile) throws IOException {
+        URL url = RT.getResource(RT.baseLoader(), scriptfile);
+        if (url == null) {
+            return null;
+        }
+        if (scriptfile.endsWith(".class")) {
+            return stamp(url, scriptfile);
+        }
+        long modified = RT.lastModified(url, scriptfile);
+        Source source = SOURCES.get(scriptfile);
+        if (source == null || source.modified != modified) {
+            source = new Source(modified, hash(read(url.openStream())));
+            SOURCES.put(scriptfile, source);
+        }
+        return source.hash;
+    }
+
+    /**
+     * Initializes the loader class of a cached script, which loads the namespace as for AOT
+     */
+    private static void loadCached(File directory, String scriptbase) throws ClassNotFoundException {
+        ClassLoader loader = new CachedClassLoader(directory, RT.baseLoader());
+        Var.pushThreadBindings(
+            RT.mapUniqueKeys(RT.CURRENT_NS, RT.CURRENT_NS.deref(),
+                             RT.WARN_ON_REFLECTION, RT.WARN_ON_REFLECTION.deref(),
+                             RT.UNCHECKED_MATH, RT.UNCHECKED_MATH.deref(),
+                             Compiler.LOADER, loader,
+                             Compiler.COMPILE_FILES, RT.F));
+        try {
+            Class.forName(scriptbase.replace('/', '.') + RT.LOADER_SUFFIX, true, loader);
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+
+    /**
+     * Evaluates a top level form of a script compiled into the cache with *compile-files* false,
+     * so the script sees the same value as when it is later loaded from the cache
+     */
+    static Object eval(Compiler.Expr expr) {
+        Var.pushThreadBindings(RT.mapUniqueKeys(Compiler.COMPILE_FILES, RT.F));
+        try {
+            return expr.eval();
+        } finally {
+            Var.popThreadBindings();
+        }
+    }
+
+    /**
+     * Compiles and loads a script, the classes are written to a temporary directory that is
+     * renamed after the hash of the dependencies so concurrent runtimes never see a partially
+     * written script
+     */
+    private static void compile(File versions, String scriptfile, byte[] source) throws IOException {
+        File temporary = new File(versions, ".tmp" + System.nanoTime());
+        temporary.mkdirs();
+        try {
+            Var.pushThreadBindings(
+                RT.mapUniqueKeys(Compiler.COMPILE_PATH, temporary.getPath(),
+                                 Compiler.COMPILE_FILES, RT.T,
+                                 COMPILING, RT.T));
+            try {
+                Compiler.compile(new InputStreamReader(new ByteArrayInputStream(source), RT.UTF8), scriptfile,
+                                 scriptfile.substring(1 + scriptfile.lastIndexOf('/')));
+            } finally {
+                Var.popThreadBindings();
+            }
+            LOADED.put(scriptfile, hash(source));
+            String dependencies = writeDependencies(temporary);
+            if ( ! temporary.renameTo(new File(versions, dependencies))) {
+                delete(temporary);
+            }
+        } finally {
+            if (temporary.exists()) {
+                delete(temporary);
+            }
+        }
+        prune(versions.getParentFile());
+    }
+
+    /**
+     * Deletes the versions of a script compiled with dependencies that have since changed, which
+     * includes every version compiled from a previous source of the script, and the directories
+     * of other compiler options left empty
+     *
+     * @param scripts The directory of the script holding a directory for each key
+     */
+    private static void prune(File scripts) throws IOException {
+        File[] keys = scripts.listFiles();
+        if (keys == null) {
+            return;
+        }
+        for (File key : keys) {
+            File[] directories = key.listFiles();
+            if (directories == null) {
+                continue;
+            }
+            for (File directory : directories) {
+                // directories without dependencies are temporaries or belong to a nested script
+                if ( ! directory.getName().startsWith(".")
+                     && new File(directory, DEPENDENCIES_FILE).isFile() && ! isValid(directory)) {
+                    delete(directory);
+                }
+            }
+            // only succeeds if empty
+            key.delete();
+        }
+    }
+
+    /**
+     * Records the hash of each script and the stamp of each loader class loaded so far, including
+     * the compiled script itself
+     *
+     * @return The hash of the recorded dependencies
+     */
+    private static String writeDependencies(File directory) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : new TreeMap<String, String>(LOADED).entrySet()) {
+            sb.append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+        }
+        byte[] dependencies = sb.toString().getBytes(RT.UTF8);
+        FileOutputStream out = new FileOutputStream(new File(directory, DEPENDENCIES_FILE));
+        try {
+            out.write(dependencies);
+        } finally {
+            out.close();
+        }
+        return hash(dependencies);
+    }
+
+    /**
+     * Returns the hash of the URL and modification time of a class, which changes if the class is
+     * compiled again or found in another directory or jar
+     */
+    private static String stamp(URL url, String classfile) throws IOException {
+        return hash((url + " " + RT.lastModified(url, classfile)).getBytes(RT.UTF8));
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Reads and closes a stream
+     */
+    static byte[] read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the SHA-1 hash of bytes as a hexadecimal string
+     */
+    static String hash(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            StringBuilder sb = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw Util.sneakyThrow(e);
+        }
+    }
+}
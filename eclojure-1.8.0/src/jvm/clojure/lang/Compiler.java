@@ -1,3 +1,4 @@
+// eClojure
 /**
  *   Copyright (c) Rich Hickey. All rights reserved.
  *   The use and distribution terms for this software are covered by the
@@ -255,6 +256,12 @@ static final public Var ADD_ANNOTATIONS = Var.intern(Namespace.findOrCreate(Symb
 static final public Keyword disableLocalsClearingKey = Keyword.intern("disable-locals-clearing");
 static final public Keyword directLinkingKey = Keyword.intern("direct-linking");
 static final public Keyword elideMetaKey = Keyword.intern("elide-meta");
+static final public Keyword constantRootsKey = Keyword.intern("constant-roots");
+static final public Keyword invokeDynamicKey = Keyword.intern("invokedynamic");
+static final public Keyword lazyRootsKey = Keyword.intern("lazy-roots");
+static final public Keyword splitMethodsKey = Keyword.intern("split-methods");
+static final public Keyword warnOnHugeMethodsKey = Keyword.intern("warn-on-huge-methods");
+static final public Keyword singletonFnsKey = Keyword.intern("singleton-fns");
 
 static final public Var COMPILER_OPTIONS;
 
@@ -282,6 +289,84 @@ static public Object getCompilerOption(Keyword k){
                 Symbol.intern("*compiler-options*"), compilerOptions).setDynamic();
     }
 
+    //roots of non-dynamic vars are read through invokedynamic, which requires Java 7 class files with frames
+    static boolean constantRoots(){
+        return RT.booleanCast(getCompilerOption(constantRootsKey));
+    }
+
+    //invocations of non-dynamic vars and protocol methods are linked through invokedynamic
+    static boolean invokeDynamic(){
+        return RT.booleanCast(getCompilerOption(invokeDynamicKey));
+    }
+
+    //functions defined by compiled files are only loaded when the root of their var is first read
+    static boolean lazyRoots(){
+        return RT.booleanCast(getCompilerOption(lazyRootsKey)) && RT.booleanCast(COMPILE_FILES.deref());
+    }
+
+    //methods too large for HotSpot to JIT compile are split into helper methods unless disabled,
+    //a class with such a method is compiled twice
+    static boolean splitMethods(){
+        return !Boolean.FALSE.equals(getCompilerOption(splitMethodsKey));
+    }
+
+    //fns closing over nothing share one instance, so evaluating the same fn expression twice gives identical fns
+    static boolean singletonFns(){
+        return RT.booleanCast(getCompilerOption(singletonFnsKey));
+    }
+
+    //a warning is printed for methods still too large for HotSpot to JIT compile
+    static boolean warnOnHugeMethods(){
+        return RT.booleanCast(getCompilerOption(warnOnHugeMethodsKey));
+    }
+
+    static int classVersion(){
+        return constantRoots() || invokeDynamic() ? V1_7 : V1_5;
+    }
+
+    static ClassWriter classWriter(final String thisName, final String superName){
+        if(!constantRoots() && !invokeDynamic())
+            return new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        return new ClassWriter(ClassWriter.COMPUTE_FRAMES){
+            //classes are resolved through the dynamic class loader as ASM only knows its own loader,
+            //the class being generated cannot be loaded yet so its superclass is used in its place
+            protected String getCommonSuperClass(String type1, String type2){
+                if(type1.equals(thisName))
+                    type1 = superName;
+                if(type2.equals(thisName))
+                    type2 = superName;
+                ClassLoader loader = LOADER.deref() instanceof DynamicClassLoader
+                                     ? (ClassLoader) LOADER.deref() : RT.makeClassLoader();
+                Class c = frameClass(type1, loader);
+                Class d = frameClass(type2, loader);
+                if(c.isAssignableFrom(d))
+                    return type1;
+                if(d.isAssignableFrom(c))
+                    return type2;
+                if(c.isInterface() || d.isInterface())
+                    return "java/lang/Object";
+                do
+                    {
+                    c = c.getSuperclass();
+                    } while(!c.isAssignableFrom(d));
+                return c.getName().replace('.', '/');
+            }
+        };
+    }
+
+    //a frame computed from a guessed type would fail verification when the class is loaded
+    static private Class frameClass(String internalName, ClassLoader loader){
+        String name = internalName.replace('/', '.');
+        try
+            {
+            return Class.forName(name, false, loader);
+            }
+        catch(ClassNotFoundException e)
+            {
+            throw Util.runtimeException("Unable to resolve class " + name + " to compute stack map frames", e);
+            }
+    }
+
     static Object elideMeta(Object m){
         Collection<Object> elides = (Collection<Object>) getCompilerOption(elideMetaKey);
         if(elides != null)
@@ -2733,7 +2818,7 @@ public static class IfExpr implements Expr, MaybePrimitiveExpr{
 		if(emitUnboxed)
 			((MaybePrimitiveExpr)thenExpr).emitUnboxed(context, objx, gen);
 		else
-			thenExpr.emit(context, objx, gen);
+			MethodSplitter.emit(context, objx, gen, thenExpr);
 		gen.goTo(endLabel);
 		gen.mark(nullLabel);
 		gen.pop();
@@ -2741,7 +2826,7 @@ public static class IfExpr implements Expr, MaybePrimitiveExpr{
 		if(emitUnboxed)
 			((MaybePrimitiveExpr)elseExpr).emitUnboxed(context, objx, gen);
 		else
-			elseExpr.emit(context, objx, gen);
+			MethodSplitter.emit(context, objx, gen, elseExpr);
 		gen.mark(endLabel);
 	}
 
@@ -3259,6 +3344,8 @@ static class KeywordInvokeExpr implements Expr{
 	public final int column;
 	public final int siteIndex;
 	public final String source;
+	//the field read directly when the target is hinted as a record with the keyword in its basis
+	public final java.lang.reflect.Field field;
 	static Type ILOOKUP_TYPE = Type.getType(ILookup.class);
 
 	public KeywordInvokeExpr(String source, int line, int column, Symbol tag, KeywordExpr kw, Expr target){
@@ -3268,7 +3355,35 @@ static class KeywordInvokeExpr implements Expr{
 		this.line = line;
 		this.column = column;
 		this.tag = tag;
-		this.siteIndex = registerKeywordCallsite(kw.k);
+		this.field = recordField(target, kw.k);
+		this.siteIndex = field == null ? registerKeywordCallsite(kw.k) : -1;
+	}
+
+	static java.lang.reflect.Field recordField(Expr target, Keyword k){
+		if(k.getNamespace() != null)
+			return null;
+		Class c;
+		try
+			{
+			c = target.hasJavaClass() ? target.getJavaClass() : null;
+			}
+		catch(Exception e)
+			{
+			return null;
+			}
+		if(c == null || !IRecord.class.isAssignableFrom(c))
+			return null;
+		try
+			{
+			for(ISeq s = RT.seq(c.getMethod("getBasis").invoke(null)); s != null; s = s.next())
+				if(((Symbol) s.first()).name.equals(k.sym.name))
+					return c.getField(munge(k.sym.name));
+			}
+		catch(Exception e)
+			{
+			//records not defined by defrecord have no basis
+			}
+		return null;
 	}
 
 	public Object eval() {
@@ -3286,6 +3401,11 @@ static class KeywordInvokeExpr implements Expr{
 	}
 
     public void emit(C context, ObjExpr objx, GeneratorAdapter gen){
+        if(field != null)
+            {
+            emitRecordField(context, objx, gen);
+            return;
+            }
         Label endLabel = gen.newLabel();
         Label faultLabel = gen.newLabel();
 
@@ -3319,6 +3439,32 @@ static class KeywordInvokeExpr implements Expr{
             gen.pop();
     }
 
+    //reads the field of a hinted record, other targets are looked up by invoking the keyword
+    void emitRecordField(C context, ObjExpr objx, GeneratorAdapter gen){
+        Type recordType = Type.getType(field.getDeclaringClass());
+        Label slowLabel = gen.newLabel();
+        Label endLabel = gen.newLabel();
+
+        target.emit(C.EXPRESSION, objx, gen);
+        gen.visitLineNumber(line, gen.mark());
+        gen.dup();                //target,target
+        gen.instanceOf(recordType);
+        gen.ifZCmp(GeneratorAdapter.EQ, slowLabel);
+        gen.checkCast(recordType);
+        gen.getField(recordType, field.getName(), Type.getType(field.getType()));
+        HostExpr.emitBoxReturn(objx, gen, field.getType());
+        gen.goTo(endLabel);
+
+        gen.mark(slowLabel);      //target
+        kw.emit(C.EXPRESSION, objx, gen);
+        gen.swap();               //keyword,target
+        gen.invokeVirtual(KEYWORD_TYPE, Method.getMethod("Object invoke(Object)"));
+
+        gen.mark(endLabel);
+        if(context == C.STATEMENT)
+            gen.pop();
+    }
+
 	public boolean hasJavaClass() {
 		return tag != null;
 	}
@@ -3660,13 +3806,38 @@ static class InvokeExpr implements Expr{
 			}
 	}
 
+	final static Handle varInvokeBootstrap = new Handle(Opcodes.H_INVOKESTATIC, "clojure/lang/VarRootSite", "bootstrapInvoke",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+			+ "Ljava/lang/String;Ljava/lang/String;)Ljava/lang/invoke/CallSite;");
+	final static Handle protocolBootstrap = new Handle(Opcodes.H_INVOKESTATIC, "clojure/lang/ProtocolCallSite", "bootstrap",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+			+ "Ljava/lang/String;Ljava/lang/String;)Ljava/lang/invoke/CallSite;");
+
+	boolean isInvokeDynamic(){
+		if(!(fexpr instanceof VarExpr) || args.count() > MAX_POSITIONAL_ARITY || !invokeDynamic())
+			return false;
+		Var v = ((VarExpr) fexpr).var;
+		return !v.isDynamic() && v.ns != null;
+	}
+
 	public void emit(C context, ObjExpr objx, GeneratorAdapter gen){
-		if(isProtocol)
+		if(isProtocol && isInvokeDynamic())
+			{
+			//receivers implementing the protocol interface are cached as well, as the interface check
+			//in front of the invokedynamic instruction keeps the JIT from inlining through the site
+			gen.visitLineNumber(line, gen.mark());
+			emitArgsAndInvokeDynamic(0, protocolBootstrap, context,objx,gen);
+			}
+		else if(isProtocol)
 			{
 			gen.visitLineNumber(line, gen.mark());
 			emitProto(context,objx,gen);
 			}
-
+		else if(isInvokeDynamic())
+			{
+			gen.visitLineNumber(line, gen.mark());
+			emitArgsAndInvokeDynamic(0, varInvokeBootstrap, context,objx,gen);
+			}
 		else
 			{
 			fexpr.emit(C.EXPRESSION, objx, gen);
@@ -3725,6 +3896,25 @@ static class InvokeExpr implements Expr{
 		gen.mark(endLabel);
 	}
 
+	void emitArgsAndInvokeDynamic(int firstArgToEmit, Handle bootstrap, C context, ObjExpr objx, GeneratorAdapter gen){
+		for(int i = firstArgToEmit; i < args.count(); i++)
+			{
+			Expr e = (Expr) args.nth(i);
+			e.emit(C.EXPRESSION, objx, gen);
+			}
+		gen.visitLineNumber(line, gen.mark());
+
+		if(context == C.RETURN)
+			{
+			ObjMethod method = (ObjMethod) METHOD.deref();
+			method.emitClearLocals(gen);
+			}
+
+		Var v = ((VarExpr) fexpr).var;
+		gen.visitInvokeDynamicInsn("invoke", Type.getMethodDescriptor(OBJECT_TYPE, ARG_TYPES[args.count()]), bootstrap,
+		                           v.ns.name.name, v.sym.name);
+	}
+
 	void emitArgsAndCall(int firstArgToEmit, C context, ObjExpr objx, GeneratorAdapter gen){
 		for(int i = firstArgToEmit; i < Math.min(MAX_POSITIONAL_ARITY, args.count()); i++)
 			{
@@ -3810,7 +4000,7 @@ static class InvokeExpr implements Expr{
 				IPersistentVector args = (IPersistentVector) s.first();
 				if(args.count() == arity)
 					{
-					String primc = FnMethod.primInterface(args);
+					String primc = FnMethod.primInterface(args, v.ns);
 					if(primc != null)
 						return analyze(context,
 						               ((IObj)RT.listStar(Symbol.intern(".invokePrim"),
@@ -3861,6 +4051,7 @@ static public class FnExpr extends ObjExpr{
 	private boolean hasPrimSigs;
 	private boolean hasMeta;
     private boolean hasEnclosingMethod;
+	private boolean singleton;
 	//	String superName = null;
 
 	public FnExpr(Object tag){
@@ -3875,6 +4066,10 @@ static public class FnExpr extends ObjExpr{
 		return hasMeta;
 	}
 
+	boolean isSingleton(){
+		return singleton && closes.count() == 0;
+	}
+
 	public Class getJavaClass() {
 		return tag != null ? HostExpr.tagToClass(tag) : AFunction.class;
 	}
@@ -3904,6 +4099,8 @@ static public class FnExpr extends ObjExpr{
 	static Expr parse(C context, ISeq form, String name) {
 		ISeq origForm = form;
 		FnExpr fn = new FnExpr(tagOf(form));
+		//read once as the class and the expressions creating the fn must agree
+		fn.singleton = singletonFns();
 		Keyword retkey = Keyword.intern(null, "rettag");
 		Object rettag = RT.get(RT.meta(form), retkey);
 		fn.src = form;
@@ -4081,6 +4278,22 @@ static public class FnExpr extends ObjExpr{
 	}
 
 	public void emitForDefn(ObjExpr objx, GeneratorAdapter gen){
+		//fns with primitive signatures are invoked through their interface which a LazyRoot lacks
+		if(!hasPrimSigs && closes.count() == 0 && lazyRoots())
+			{
+			//the class of the fn is loaded by the loader of the class defining the var
+			Type lazyType = Type.getType(LazyRoot.class);
+			//presumes var on stack
+			gen.dup();
+			gen.newInstance(lazyType);
+			gen.dupX1();
+			gen.swap();
+			gen.push(internalName.replace('/','.'));
+			gen.push(objx.objtype);
+			gen.invokeVirtual(CLASS_TYPE, Method.getMethod("ClassLoader getClassLoader()"));
+			gen.invokeConstructor(lazyType, Method.getMethod("void <init>(clojure.lang.Var,String,ClassLoader)"));
+			return;
+			}
 //		if(!hasPrimSigs && closes.count() == 0)
 //			{
 //			Type thunkType = Type.getType(FnLoaderThunk.class);
@@ -4130,11 +4343,17 @@ static public class ObjExpr implements Expr{
 	int constantsID;
 	int altCtorDrops = 0;
 
+	//static field holding the shared instance of a singleton
+	static final String SINGLETON_FIELD = "__instance";
+
 	IPersistentVector keywordCallsites;
 	IPersistentVector protocolCallsites;
 	IPersistentSet varCallsites;
 	boolean onceOnly = false;
 
+	//measures the methods while the class is generated
+	MethodSplitter splitter;
+
 	Object src;
 
     IPersistentMap opts = PersistentHashMap.EMPTY;
@@ -4241,16 +4460,22 @@ static public class ObjExpr implements Expr{
 	}
 
 	void compile(String superName, String[] interfaceNames, boolean oneTimeUse) throws IOException{
+		compile(superName, interfaceNames, oneTimeUse, false);
+	}
+
+	void compile(String superName, String[] interfaceNames, boolean oneTimeUse, boolean splitting) throws IOException{
 		//create bytecode for a class
 		//with name current_ns.defname[$letname]+
 		//anonymous fns get names fn__id
 		//derived from AFn/RestFn
-		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		ClassWriter cw = classWriter(internalName, superName);
 //		ClassWriter cw = new ClassWriter(0);
-		ClassVisitor cv = cw;
+		splitter = new MethodSplitter(this, cw, splitting);
+		closesExprs = PersistentVector.EMPTY;
+		ClassVisitor cv = splitter;
 //		ClassVisitor cv = new TraceClassVisitor(new CheckClassAdapter(cw), new PrintWriter(System.out));
 		//ClassVisitor cv = new TraceClassVisitor(cw, new PrintWriter(System.out));
-		cv.visit(V1_5, ACC_PUBLIC + ACC_SUPER + ACC_FINAL, internalName, null,superName,interfaceNames);
+		cv.visit(classVersion(), ACC_PUBLIC + ACC_SUPER + ACC_FINAL, internalName, null,superName,interfaceNames);
 //		         superName != null ? superName :
 //		         (isVariadic() ? "clojure/lang/RestFn" : "clojure/lang/AFunction"), null);
 		String source = (String) SOURCE.deref();
@@ -4325,6 +4550,11 @@ static public class ObjExpr implements Expr{
 				}
 			}
 
+		if(isSingleton())
+			{
+			cv.visitField(ACC_PUBLIC + ACC_FINAL + ACC_STATIC, SINGLETON_FIELD, objtype.getDescriptor(), null, null);
+			}
+
 		//static fields for callsites and thunks
 		for(int i=0;i<protocolCallsites.count();i++)
 			{
@@ -4560,6 +4790,16 @@ static public class ObjExpr implements Expr{
       			}
               */
 
+        if(isSingleton())
+            {
+            clinitgen.newInstance(objtype);
+            clinitgen.dup();
+            if(supportsMeta())
+                clinitgen.visitInsn(Opcodes.ACONST_NULL);
+            clinitgen.invokeConstructor(objtype, new Method("<init>", Type.VOID_TYPE, ctorTypes()));
+            clinitgen.putStatic(objtype, SINGLETON_FIELD, objtype);
+            }
+
         if(isDeftype() && RT.booleanCast(RT.get(opts, loadNs))) {
               String nsname = ((Symbol)RT.second(src)).getNamespace();
               if (!nsname.equals("clojure.core")) {
@@ -4582,6 +4822,16 @@ static public class ObjExpr implements Expr{
 		//end of class
 		cv.visitEnd();
 
+		//the class is generated again with the code that does not fit in its methods moved to helpers
+		if(!splitting && splitMethods() && splitter.hasHugeMethods())
+			{
+			compile(superName, interfaceNames, oneTimeUse, true);
+			return;
+			}
+		if(warnOnHugeMethods())
+			splitter.warnHugeMethods();
+		splitter = null;
+
 		bytecode = cw.toByteArray();
 		if(RT.booleanCast(COMPILE_FILES.deref()))
 			writeClassFile(internalName, bytecode);
@@ -4878,6 +5128,12 @@ static public class ObjExpr implements Expr{
 	boolean supportsMeta(){
 		return !isDeftype();
 	}
+
+	//objects without closed-overs are immutable so one instance created by the static initializer is shared
+	boolean isSingleton(){
+		return false;
+	}
+
 	void emitClearCloses(GeneratorAdapter gen){
 //		int a = 1;
 //		for(ISeq s = RT.keys(closes); s != null; s = s.next(), ++a)
@@ -4953,6 +5209,10 @@ static public class ObjExpr implements Expr{
 			{
 			gen.visitInsn(Opcodes.ACONST_NULL);
 			}
+		else if(isSingleton())
+			{
+			gen.getStatic(objtype, SINGLETON_FIELD, objtype);
+			}
 		else
 			{
 			gen.newInstance(objtype);
@@ -5096,13 +5356,23 @@ static public class ObjExpr implements Expr{
 
 	final static Method varGetMethod = Method.getMethod("Object get()");
 	final static Method varGetRawMethod = Method.getMethod("Object getRawRoot()");
+	final static Method varGetRealizedMethod = Method.getMethod("Object getRealizedRoot()");
+
+	final static Handle varRootBootstrap = new Handle(Opcodes.H_INVOKESTATIC, "clojure/lang/VarRootSite", "bootstrap",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;"
+			+ "Ljava/lang/String;Ljava/lang/String;)Ljava/lang/invoke/CallSite;");
 
 	public void emitVarValue(GeneratorAdapter gen, Var v){
 		Integer i = (Integer) vars.valAt(v);
-		if(!v.isDynamic())
+		if(!v.isDynamic() && v.ns != null && constantRoots())
+			{
+			gen.visitInvokeDynamicInsn("root", "()Ljava/lang/Object;", varRootBootstrap,
+			                           v.ns.name.name, v.sym.name);
+			}
+		else if(!v.isDynamic())
 			{
 			emitConstant(gen, i);
-			gen.invokeVirtual(VAR_TYPE, varGetRawMethod);
+			gen.invokeVirtual(VAR_TYPE, lazyRoots() ? varGetRealizedMethod : varGetRawMethod);
 			}
 		else
 			{
@@ -5233,15 +5503,16 @@ public static class FnMethod extends ObjMethod{
 		throw new IllegalArgumentException("Only long and double primitives are supported");
 	}
 
-	static public String primInterface(IPersistentVector arglist) {
+	static public String primInterface(IPersistentVector arglist, Namespace ns) {
 		StringBuilder sb = new StringBuilder();
 		for(int i=0;i<arglist.count();i++)
 			sb.append(classChar(tagOf(arglist.nth(i))));
 		sb.append(classChar(tagOf(arglist)));
 		String ret = sb.toString();
 		boolean prim = ret.contains("L") || ret.contains("D");
+		//IFn only declares interfaces for up to 4 args, the interfaces for more args are generated in ns
 		if(prim && arglist.count() > 4)
-			throw new IllegalArgumentException("fns taking primitives support only 4 or fewer args");
+			return PrimInterface.forSignature(ns, ret);
 		if(prim)
 			return "clojure.lang.IFn$" + ret;
 		return null;
@@ -5271,7 +5542,7 @@ public static class FnMethod extends ObjMethod{
                             ,CLEAR_SITES, PersistentHashMap.EMPTY
                         ));
 
-			method.prim = primInterface(parms);
+			method.prim = primInterface(parms, currentNS());
 			if(method.prim != null)
 				method.prim = method.prim.replace('.', '/');
 
@@ -6026,23 +6297,15 @@ public static class BodyExpr implements Expr, MaybePrimitiveExpr{
 	}
 
 	public void emitUnboxed(C context, ObjExpr objx, GeneratorAdapter gen){
-		for(int i = 0; i < exprs.count() - 1; i++)
-			{
-			Expr e = (Expr) exprs.nth(i);
-			e.emit(C.STATEMENT, objx, gen);
-			}
+		MethodSplitter.emitStatements(objx, gen, exprs, exprs.count() - 1);
 		MaybePrimitiveExpr last = (MaybePrimitiveExpr) exprs.nth(exprs.count() - 1);
 		last.emitUnboxed(context, objx, gen);
 	}
 
 	public void emit(C context, ObjExpr objx, GeneratorAdapter gen){
-		for(int i = 0; i < exprs.count() - 1; i++)
-			{
-			Expr e = (Expr) exprs.nth(i);
-			e.emit(C.STATEMENT, objx, gen);
-			}
+		MethodSplitter.emitStatements(objx, gen, exprs, exprs.count() - 1);
 		Expr last = (Expr) exprs.nth(exprs.count() - 1);
-		last.emit(context, objx, gen);
+		MethodSplitter.emit(context, objx, gen, last);
 	}
 
 	public boolean hasJavaClass() {
@@ -7471,7 +7734,10 @@ static void compile1(GeneratorAdapter gen, ObjExpr objx, Object form) {
 			objx.vars = (IPersistentMap) VARS.deref();
 			objx.constants = (PersistentVector) CONSTANTS.deref();
 			expr.emit(C.EXPRESSION, objx, gen);
-			expr.eval();
+			if(CompileCache.COMPILING.deref() != null)
+				CompileCache.eval(expr);
+			else
+				expr.eval();
 			}
 		}
 	finally
@@ -7520,9 +7786,9 @@ public static Object compile(Reader rdr, String sourcePath, String sourceName) t
 		                  + RT.LOADER_SUFFIX;
 
 		objx.objtype = Type.getObjectType(objx.internalName);
-		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		ClassWriter cw = classWriter(objx.internalName, "java/lang/Object");
 		ClassVisitor cv = cw;
-		cv.visit(V1_5, ACC_PUBLIC + ACC_SUPER, objx.internalName, null, "java/lang/Object", null);
+		cv.visit(classVersion(), ACC_PUBLIC + ACC_SUPER, objx.internalName, null, "java/lang/Object", null);
 
 		//static load method
 		GeneratorAdapter gen = new GeneratorAdapter(ACC_PUBLIC + ACC_STATIC,
@@ -8702,8 +8968,10 @@ public static class CaseExpr implements Expr, MaybePrimitiveExpr{
     private static void emitExpr(ObjExpr objx, GeneratorAdapter gen, Expr expr, boolean emitUnboxed){
         if (emitUnboxed && expr instanceof MaybePrimitiveExpr)
             ((MaybePrimitiveExpr)expr).emitUnboxed(C.EXPRESSION,objx,gen);
-        else
+        else if (emitUnboxed)
             expr.emit(C.EXPRESSION,objx,gen);
+        else
+            MethodSplitter.emit(C.EXPRESSION,objx,gen,expr);
     }
 
 
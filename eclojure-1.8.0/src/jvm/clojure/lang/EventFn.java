@@ -18,7 +18,9 @@ package clojure.lang;
 public class EventFn {
     final private IFn fn;
     final private ISeq args;
+    final private Object[] argArray;
     final private boolean deleteAfterRun;
+    private boolean removed = false;
 
     /**
      * Constructor allowing to delete function when it has been executed once
@@ -30,6 +32,7 @@ public class EventFn {
     EventFn(IFn fn, ISeq args, boolean deleteAfterRun) {
         this.fn = fn;
         this.args = args;
+        this.argArray = RT.seqToArray(args);
         this.deleteAfterRun = deleteAfterRun;
     }
 
@@ -42,12 +45,43 @@ public class EventFn {
         return this.deleteAfterRun;
     }
 
+    /**
+     * Indicates if the thunk was removed from its listeners while they were running
+     *
+     * @return True if the thunk must not be run again
+     */
+    boolean isRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * Marks the thunk as removed, it is deleted from its listeners when they are no longer running
+     */
+    void markRemoved() {
+        this.removed = true;
+    }
+
     /**
      * Execute the thunk and returns the value computed
      *
      * @return Returns the return value of the function executed
      */
     Object run() {
-        return fn.applyTo(this.args);
+        // The arity is resolved here so the common cases avoid the dispatch in applyTo
+        final Object[] a = this.argArray;
+        switch (a.length) {
+            case 0:
+                return fn.invoke();
+            case 1:
+                return fn.invoke(a[0]);
+            case 2:
+                return fn.invoke(a[0], a[1]);
+            case 3:
+                return fn.invoke(a[0], a[1], a[2]);
+            case 4:
+                return fn.invoke(a[0], a[1], a[2], a[3]);
+            default:
+                return fn.applyTo(this.args);
+        }
     }
 }
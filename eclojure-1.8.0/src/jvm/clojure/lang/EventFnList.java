@@ -0,0 +1,76 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.util.ArrayList;
+
+/**
+ * The EventFns listening to a single key. While the list is run, EventFns removed by events or run
+ * once are only marked as removed and are deleted when the outermost run completes, so a run is not
+ * disturbed by events listening, dismissing or notifying the same key
+ */
+final class EventFnList extends ArrayList<EventFn> {
+    /**
+     * The number of runs of the list in progress, runs are nested if an event notifies the same key
+     */
+    int running = 0;
+
+    /**
+     * The number of EventFns marked as removed since the list was last compacted
+     */
+    int removed = 0;
+
+    /**
+     * Removes an EventFn, or marks it as removed if the list is being run
+     *
+     * @param eventFn The EventFn to remove
+     */
+    void removeEventFn(EventFn eventFn) {
+        if (this.running == 0) {
+            remove(eventFn);
+        } else if (indexOf(eventFn) != -1) {
+            markRemoved(eventFn);
+        }
+    }
+
+    /**
+     * Marks an EventFn in the list as removed
+     *
+     * @param eventFn The EventFn to mark as removed
+     */
+    void markRemoved(EventFn eventFn) {
+        if ( ! eventFn.isRemoved()) {
+            eventFn.markRemoved();
+            this.removed++;
+        }
+    }
+
+    /**
+     * Deletes the EventFns marked as removed by compacting the list in place
+     */
+    void compact() {
+        int size = size();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            EventFn fn = get(i);
+            if ( ! fn.isRemoved()) {
+                if (kept != i) {
+                    set(kept, fn);
+                }
+                kept++;
+            }
+        }
+        removeRange(kept, size);
+        this.removed = 0;
+    }
+}
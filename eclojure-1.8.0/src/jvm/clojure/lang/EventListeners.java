@@ -0,0 +1,223 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Event listeners keyed by keyword, supporting wildcard keys such as :order/* that
+ * matches all keys in the order namespace and its sub namespaces, or :* matching all keys
+ * except the keys run by a transaction when it commits or aborts
+ */
+class EventListeners {
+    private static final String WILDCARD = "*";
+    private static final ArrayList<EventFnList> NOROUTE = new ArrayList<EventFnList>(0);
+
+    /**
+     * The number of routes cached, the cache is cleared when full as keys such as ids can be unbounded
+     */
+    static final int MAX_ROUTES = 1024;
+
+    /**
+     * Listeners for each key in the order the keys were first listened to
+     */
+    private final LinkedHashMap<Keyword, EventFnList> listeners = new LinkedHashMap<Keyword, EventFnList>();
+
+    /**
+     * Precomputed lists of listeners matching a notified or checked key, only used if wildcards are
+     * registered, and bounded by MAX_ROUTES
+     */
+    private final HashMap<Keyword, ArrayList<EventFnList>> routes = new HashMap<Keyword, ArrayList<EventFnList>>();
+    private int wildcards = 0;
+
+    /**
+     * Adds an EventFn to the listeners of a key
+     *
+     * @param key     The keyword or wildcard keyword identifying the event
+     * @param eventFn The EventFn to add
+     */
+    void add(Keyword key, EventFn eventFn) {
+        EventFnList eventFns = this.listeners.get(key);
+        if (eventFns == null) {
+            eventFns = new EventFnList();
+            this.listeners.put(key, eventFns);
+
+            // Only a new key can change the routes as the lists are shared with the routes
+            if (isWildcard(key)) {
+                this.wildcards++;
+            }
+            this.routes.clear();
+        }
+        eventFns.add(eventFn);
+    }
+
+    /**
+     * Removes an EventFn from the listeners of a key
+     *
+     * @param key     The keyword or wildcard keyword the EventFn was added with
+     * @param eventFn The EventFn to remove
+     */
+    void remove(Keyword key, EventFn eventFn) {
+        EventFnList eventFns = this.listeners.get(key);
+        if (eventFns == null) {
+            return;
+        }
+        eventFns.removeEventFn(eventFn);
+
+        // A list being run is only emptied when compacted, but no EventFn in it will run again
+        if (eventFns.size() == eventFns.removed) {
+            this.listeners.remove(key);
+            if (isWildcard(key)) {
+                this.wildcards--;
+            }
+            this.routes.clear();
+        }
+    }
+
+    /**
+     * Removes all listeners
+     */
+    void clear() {
+        if ( ! this.listeners.isEmpty()) {
+            this.listeners.clear();
+            this.routes.clear();
+            this.wildcards = 0;
+        }
+    }
+
+    /**
+     * Checks if any listener would be run if the key was notified
+     *
+     * @param key The keyword identifying the event
+     *
+     * @return    True if at least one listener matches the key
+     */
+    boolean hasListeners(Keyword key) {
+        if (this.wildcards == 0 || isLifecycle(key)) {
+            EventFnList eventFns = this.listeners.get(key);
+            return eventFns != null && eventFns.size() > eventFns.removed;
+        }
+
+        for (EventFnList eventFns : route(key)) {
+            if (eventFns.size() > eventFns.removed) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Run all listeners matching the key
+     *
+     * @param key The keyword identifying the event
+     */
+    void run(Keyword key) {
+        if (this.wildcards == 0 || isLifecycle(key)) {
+            EventFnList eventFns = this.listeners.get(key);
+            if (eventFns != null) {
+                EventManager.runEventFns(eventFns);
+            }
+            return;
+        }
+
+        ArrayList<EventFnList> route = route(key);
+        for (int i = 0; i < route.size(); i++) {
+            EventManager.runEventFns(route.get(i));
+        }
+    }
+
+    /**
+     * Returns the lists of listeners matching the key, computing the route if necessary
+     *
+     * @param key The keyword identifying the event
+     *
+     * @return    The exact listeners of the key followed by any matching wildcard listeners
+     */
+    private ArrayList<EventFnList> route(Keyword key) {
+        ArrayList<EventFnList> route = this.routes.get(key);
+        if (route != null) {
+            return route;
+        }
+
+        route = new ArrayList<EventFnList>();
+        EventFnList exact = this.listeners.get(key);
+        if (exact != null) {
+            route.add(exact);
+        }
+        for (Map.Entry<Keyword, EventFnList> e : this.listeners.entrySet()) {
+            if (e.getKey() != key && matches(e.getKey(), key)) {
+                route.add(e.getValue());
+            }
+        }
+        route = route.isEmpty() ? NOROUTE : route;
+        if (this.routes.size() >= MAX_ROUTES) {
+            this.routes.clear();
+        }
+        this.routes.put(key, route);
+        return route;
+    }
+
+    /**
+     * Checks if a keyword is a wildcard
+     *
+     * @param key The keyword to check
+     *
+     * @return    True if the name of the keyword is *
+     */
+    static boolean isWildcard(Keyword key) {
+        return WILDCARD.equals(key.getName());
+    }
+
+    /**
+     * Checks if a keyword is one of the keys run by a transaction when it commits or aborts, which
+     * are only run for listeners of the exact key and never matched by wildcards
+     *
+     * @param key The keyword to check
+     *
+     * @return    True if the key is :on-commit, :after-commit or :on-abort
+     */
+    static boolean isLifecycle(Keyword key) {
+        return key == LockingTransaction.ONCOMMITKEYWORD
+            || key == LockingTransaction.AFTERCOMMITKEYWORD
+            || key == LockingTransaction.ONABORTKEYWORD;
+    }
+
+    /**
+     * Checks if a wildcard keyword matches a key, :a/* matches the namespaces a and a.b
+     *
+     * @param pattern The wildcard keyword
+     * @param key     The keyword identifying the event
+     *
+     * @return        True if the key is matched by the wildcard
+     */
+    static boolean matches(Keyword pattern, Keyword key) {
+        if ( ! isWildcard(pattern)) {
+            return false;
+        }
+
+        String patternNamespace = pattern.getNamespace();
+        if (patternNamespace == null) {
+            return true;
+        }
+
+        String keyNamespace = key.getNamespace();
+        if (keyNamespace == null || ! keyNamespace.startsWith(patternNamespace)) {
+            return false;
+        }
+        return keyNamespace.length() == patternNamespace.length()
+            || keyNamespace.charAt(patternNamespace.length()) == '.';
+    }
+}
@@ -12,9 +12,6 @@
 
 package clojure.lang;
 
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.HashMap;
 
 /**
  * Event manager for generic and transactional events
@@ -28,16 +25,16 @@ public class EventManager {
     /**
      * Stores global events that is shared by all threads despite what thread crated them
      */
-    private final static HashMap<Keyword, ArrayList<EventFn>> globalEvents = new HashMap<Keyword, ArrayList<EventFn>>();
+    private final static EventListeners globalEvents = new EventListeners();
 
     /**
      * Stores local events that only is available for the thread that created them
      */
-    private final static ThreadLocal<HashMap<Keyword, ArrayList<EventFn>>> threadlocalEvents =
-        new ThreadLocal<HashMap<Keyword, ArrayList<EventFn>>>() {
+    private final static ThreadLocal<EventListeners> threadlocalEvents =
+        new ThreadLocal<EventListeners>() {
             @Override
-            protected HashMap<Keyword, ArrayList<EventFn>> initialValue() {
-                return new HashMap<Keyword, ArrayList<EventFn>>();
+            protected EventListeners initialValue() {
+                return new EventListeners();
             }
         };
 
@@ -51,7 +48,7 @@ public class EventManager {
     /**
      * Listen for a specific event to be notified given a Keyword during a transaction
      *
-     * @param key            The keyword to identify the event
+     * @param key            The keyword or wildcard keyword such as :order/* to identify the event
      * @param fn             Function to be executed
      * @param args           Arguments for the function or null for function without arguments
      * @param deleteAfterRun Whether or not the delete the event after it was run once
@@ -63,13 +60,8 @@ public class EventManager {
         LockingTransaction transaction = LockingTransaction.getEx();
 
         // Events constructed inside a transaction is always local to the transaction only
-        Map<Keyword, ArrayList<EventFn>> eventListeners = transaction.getEventListeners();
-        if ( ! eventListeners.containsKey(key)) {
-            eventListeners.put(key, new ArrayList<EventFn>());
-        }
-
         EventFn eventFn = new EventFn(fn, args, deleteAfterRun);
-        eventListeners.get(key).add(eventFn);
+        transaction.getEventListeners().add(key, eventFn);
 
         return eventFn;
     }
@@ -83,14 +75,26 @@ public class EventManager {
     public static void stmNotify(Keyword key, Object context) {
         // Throws exception if no transaction is running
         LockingTransaction transaction = LockingTransaction.getEx();
-        Map<Keyword, ArrayList<EventFn>> eventListeners = transaction.getEventListeners();
-        EventManager.runEvents(key, eventListeners, context);
+        EventManager.runEvents(key, transaction.getEventListeners(), context);
+    }
+
+    /**
+     * Checks if notifying the keyword given as key during a transaction would run any event
+     *
+     * @param key The key indicating which events to check
+     *
+     * @return    True if at least one transactional event listens for key
+     */
+    public static boolean stmHasListeners(Keyword key) {
+        // Throws exception if no transaction is running
+        LockingTransaction transaction = LockingTransaction.getEx();
+        return transaction.getEventListeners().hasListeners(key);
     }
 
     /**
      * Listen for a specific event to be notified given a Keyword
      *
-     * @param key            The keyword to identify the event
+     * @param key            The keyword or wildcard keyword such as :order/* to identify the event
      * @param fn             Function to be executed
      * @param args           Arguments for the function or null for function without arguments
      * @param threadLocal    Whether or not the event should be thread local or not
@@ -104,19 +108,13 @@ public class EventManager {
         }
 
         // Determines if the thunk should be added as as global or thread local event listener
-        Map<Keyword, ArrayList<EventFn>> eventMap =
+        EventListeners eventMap =
             (threadLocal) ? EventManager.threadlocalEvents.get() : EventManager.globalEvents;
 
-        // Create the EventFn for the given fn and args, then add the EventFn to the list
+        // Create the EventFn for the given fn and args, then add the EventFn to the listeners
         EventFn listenerEventFn = new EventFn(fn, args, deleteAfterRun);
-
-        // Check if the HashMap has a key for the given Keyword
         synchronized (eventMap) {
-            if ( ! eventMap.containsKey(key)) {
-                eventMap.put(key, new ArrayList<EventFn>());
-            }
-
-            eventMap.get(key).add(listenerEventFn);
+            eventMap.add(key, listenerEventFn);
         }
 
         // Return the EventFn for easy future removal for the developer
@@ -138,6 +136,23 @@ public class EventManager {
         EventManager.runEvents(key, EventManager.threadlocalEvents.get(), context);
     }
 
+    /**
+     * Checks if notifying the keyword given as key would run any global or thread local event,
+     * allowing the context to only be constructed when necessary
+     *
+     * @param key The key indicating which events to check
+     *
+     * @return    True if at least one event listens for key
+     */
+    public static boolean hasListeners(Keyword key) {
+        if (EventManager.threadlocalEvents.get().hasListeners(key)) {
+            return true;
+        }
+        synchronized (EventManager.globalEvents) {
+            return EventManager.globalEvents.hasListeners(key);
+        }
+    }
+
     /**
      * Dismiss an EventFn from an event keyword
      *
@@ -156,16 +171,12 @@ public class EventManager {
 
         if (dismissFrom == DISMISSALL || dismissFrom == DISMISSGLOBAL) {
             synchronized (EventManager.globalEvents) {
-                if (EventManager.globalEvents.containsKey(key)) {
-                    EventManager.globalEvents.get(key).remove(eventFn);
-                }
+                EventManager.globalEvents.remove(key, eventFn);
             }
         }
 
         if (dismissFrom == DISMISSALL || dismissFrom == DISMISSLOCAL) {
-            if (EventManager.threadlocalEvents.get().containsKey(key)) {
-                EventManager.threadlocalEvents.get().get(key).remove(eventFn);
-            }
+            EventManager.threadlocalEvents.get().remove(key, eventFn);
         }
     }
 
@@ -185,25 +196,52 @@ public class EventManager {
      * @param events  The events to look through
      * @param context Data given from notify
      */
-    static void runEvents(Keyword key, Map<Keyword, ArrayList<EventFn>> events, Object context) {
-        // Checks if there are any events
-        if (events.containsKey(key)) {
-            // A delete list is used to prevent concurrent modification exceptions
-            ArrayList<EventFn> toDeleteAfterRun = new ArrayList<EventFn>();
-
-            // Set context
+    static void runEvents(Keyword key, EventListeners events, Object context) {
+        // Set context, restoring the previous context allows events to notify other events
+        Object previousContext = EventManager.context.get();
+        if (previousContext != context) {
             EventManager.context.set(context);
+        }
 
-            for (EventFn fn : events.get(key)) {
-                fn.run();
+        try {
+            events.run(key);
+        } finally {
+            // Prevents the context from leaking outside the scope of the event
+            if (previousContext != context) {
+                EventManager.context.set(previousContext);
+            }
+        }
+    }
 
+    /**
+     * Run all events in a list of events
+     *
+     * @param eventFns The events to run
+     */
+    static void runEventFns(EventFnList eventFns) {
+        // Only events present before the run are executed so events added by an event are kept in
+        // order, events run once or dismissed are marked as removed and deleted by compacting the
+        // list in place when the outermost run completes, so the list is not modified while it is run
+        int size = eventFns.size();
+        eventFns.running++;
+        try {
+            for (int i = 0; i < size; i++) {
+                EventFn fn = eventFns.get(i);
+                if (fn.isRemoved()) {
+                    continue;
+                }
+
+                // Marked before running so an event notifying its own key does not run it again
                 if (fn.deleteAfterRun()) {
-                    toDeleteAfterRun.add(fn);
+                    eventFns.markRemoved(fn);
                 }
+                fn.run();
+            }
+        } finally {
+            eventFns.running--;
+            if (eventFns.running == 0 && eventFns.removed > 0) {
+                eventFns.compact();
             }
-            // Prevents the context from leaking outside the scope of the event
-            EventManager.context.set(null);
-            events.get(key).removeAll(toDeleteAfterRun);
         }
     }
 }
@@ -12,10 +12,25 @@
 
 package clojure.lang;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Ref class optimised for holding Java references to mutable objects
  */
 public class JavaRef extends Ref {
+    /**
+     * The number of running transactions borrowing the object
+     */
+    final AtomicInteger borrowers = new AtomicInteger();
+
+    /**
+     * The transaction that waited longer than the barge window to take the object, new borrows
+     * wait for it to take the object so a steady stream of borrowers cannot starve it
+     */
+    final AtomicReference<LockingTransaction> writer = new AtomicReference<LockingTransaction>();
+
     public JavaRef(Object initVal) {
         this(initVal, null);
     }
@@ -33,9 +48,86 @@ public class JavaRef extends Ref {
         //To discourage aliasing is non-destructive reads not allowed inside
         //transaction, as the value otherwise would be trivial to duplicate
         //between multiple references.
-        Object tValue = t.doGet(this);
-        LockingTransaction.getEx().doSet(this, null);
-        return tValue;
+        //Taking the object keeps the write lock unlike a borrow, as the taker
+        //mutates the object in place before committing so ownership must be
+        //exclusive from the take rather than validated at commit, and returning
+        //it with ref-set commits a new value which needs the write lock as for
+        //any Ref.
+        return t.doTake(this);
+    }
+
+    /**
+     * Reads the value without taking ownership of it, so transactions only reading the
+     * object do not serialize on the write lock. A borrow waits for a running transaction
+     * owning the object to finish, and other transactions wait to take the object until the
+     * borrowing transaction stops, so the object is never mutated while borrowed. The
+     * transaction retries at commit if another transaction replaced the object after the read
+     * point. A transaction that waited longer than the barge window to take the object is
+     * preferred, and new borrows wait until it has taken the object. Borrowed objects must not
+     * be mutated or escape the transaction.
+     *
+     * @return The value of the JavaRef at the read point of the transaction
+     */
+    public Object borrow() {
+        LockingTransaction t = LockingTransaction.getRunning();
+        if(t == null)
+            return currentVal();
+        return t.doBorrow(this);
+    }
+
+    /**
+     * Releases a borrow of a transaction that stopped, waking transactions waiting to take
+     * the object if it was the last
+     */
+    void release() {
+        if (this.borrowers.decrementAndGet() == 0) {
+            synchronized (this.borrowers) {
+                this.borrowers.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until no transaction borrows the object or the timeout elapses
+     *
+     * @param msecs The maximum time to wait in milliseconds
+     */
+    void awaitBorrowers(long msecs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(msecs);
+        synchronized (this.borrowers) {
+            long remaining;
+            while (this.borrowers.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this.borrowers, remaining);
+            }
+        }
+    }
+
+    /**
+     * Waits until no transaction is preferred for taking the object or the timeout elapses
+     *
+     * @param msecs The maximum time to wait in milliseconds
+     */
+    void awaitWriter(long msecs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(msecs);
+        synchronized (this.borrowers) {
+            long remaining;
+            while (this.writer.get() != null && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this.borrowers, remaining);
+            }
+        }
+    }
+
+    /**
+     * Removes the preference of a transaction, waking the transactions waiting to borrow
+     *
+     * @param t The transaction that took the object or stopped
+     */
+    void clearWriter(LockingTransaction t) {
+        if (this.writer.compareAndSet(t, null)) {
+            synchronized (this.borrowers) {
+                this.borrowers.notifyAll();
+            }
+        }
     }
 
     public Ref setMinHistory(int minHistory) {
@@ -1,3 +1,4 @@
+// eClojure
 /**
  *   Copyright (c) Rich Hickey. All rights reserved.
  *   The use and distribution terms for this software are covered by the
@@ -12,15 +13,48 @@
 
 package clojure.lang;
 
+import java.util.Arrays;
+
 public final class KeywordLookupSite implements ILookupSite, ILookupThunk{
 
+//the number of target classes cached by a site before it looks up every target generically
+static final int MAX_THUNKS = 4;
+
 final Keyword k;
+//the thunks installed for the targets seen by the site, replaced but never modified
+volatile ILookupThunk[] thunks = new ILookupThunk[0];
 
 public KeywordLookupSite(Keyword k){
 	this.k = k;
 }
 
 public ILookupThunk fault(Object target){
+	ILookupThunk[] ts = thunks;
+	if(ts.length == MAX_THUNKS)
+		return megamorphicThunk();
+	ILookupThunk t = thunk(target);
+	if(ts.length == 0)
+		{
+		thunks = new ILookupThunk[]{t};
+		return t;
+		}
+	//the thunks of the previous targets are kept so a site seeing a few classes stops faulting
+	ts = Arrays.copyOf(ts, ts.length + 1);
+	ts[ts.length - 1] = t;
+	thunks = ts;
+	return polymorphicThunk(ts);
+}
+
+private ILookupThunk thunk(Object target){
+	if(target != null && target.getClass() == PersistentArrayMap.class)
+		{
+		Object[] array = ((PersistentArrayMap) target).array;
+		int index = -1;
+		for(int i = 0; i < array.length && index < 0; i += 2)
+			if(array[i] == k)
+				index = i;
+		return arrayMapThunk(index);
+		}
 	if(target instanceof IKeywordLookup)
 		{
 		return install(target);
@@ -48,6 +82,45 @@ private ILookupThunk ilookupThunk(final Class c){
 		};
 }
 
+//maps built by the same code have their keys in the same order, so the index of the keyword in
+//the first map seen is tried before searching the array of the map
+private ILookupThunk arrayMapThunk(final int index){
+	return new ILookupThunk(){
+			public Object get(Object target){
+				if(target != null && target.getClass() == PersistentArrayMap.class)
+					{
+					Object[] array = ((PersistentArrayMap) target).array;
+					if(index >= 0 && index < array.length && array[index] == k)
+						return array[index + 1];
+					return ((PersistentArrayMap) target).valAt(k);
+					}
+				return this;
+			}
+		};
+}
+
+private ILookupThunk polymorphicThunk(final ILookupThunk[] ts){
+	return new ILookupThunk(){
+			public Object get(Object target){
+				for(ILookupThunk t : ts)
+					{
+					Object ret = t.get(target);
+					if(ret != t)
+						return ret;
+					}
+				return this;
+			}
+		};
+}
+
+private ILookupThunk megamorphicThunk(){
+	return new ILookupThunk(){
+			public Object get(Object target){
+				return RT.get(target, k);
+			}
+		};
+}
+
 private ILookupThunk install(Object target){
 	ILookupThunk t = ((IKeywordLookup)target).getLookupThunk(k);
 	if(t != null)
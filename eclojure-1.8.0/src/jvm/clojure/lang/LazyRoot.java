@@ -0,0 +1,93 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+/**
+ * Root of a Var defined as a function by AOT code compiled with :lazy-roots, the class of the
+ * function is only loaded and instantiated when the root is first realized. Code compiled with
+ * :lazy-roots realizes the root when reading the Var, other code reads the LazyRoot itself, which
+ * like FnLoaderThunk realizes the root when invoked and then delegates to the function.
+ */
+public final class LazyRoot extends RestFn {
+    private final Var var;
+    private final String className;
+    private final ClassLoader loader;
+    private volatile IFn fn;
+
+    /**
+     * Constructs a lazy root
+     *
+     * @param var       The Var the root is bound to
+     * @param className The name of the class of the function
+     * @param loader    The loader of the class defining the Var
+     */
+    public LazyRoot(Var var, String className, ClassLoader loader) {
+        this.var = var;
+        this.className = className;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the function, loading its class and replacing the root of the Var on first use. The
+     * lock of the Var is not held while the class is loaded so its static initializer can read
+     * other Vars
+     *
+     * @return The function
+     */
+    IFn realize() {
+        IFn f = this.fn;
+        if (f == null) {
+            synchronized (this) {
+                f = this.fn;
+                if (f == null) {
+                    try {
+                        f = (IFn) Class.forName(this.className, true, this.loader).newInstance();
+                    } catch (Exception e) {
+                        throw Util.sneakyThrow(e);
+                    }
+                    this.fn = f;
+                }
+            }
+            this.var.realizeRoot(this, f);
+        }
+        return f;
+    }
+
+    public Object invoke(Object arg1) {
+        return realize().invoke(arg1);
+    }
+
+    public Object invoke(Object arg1, Object arg2) {
+        return realize().invoke(arg1, arg2);
+    }
+
+    public Object invoke(Object arg1, Object arg2, Object arg3) {
+        return realize().invoke(arg1, arg2, arg3);
+    }
+
+    protected Object doInvoke(Object args) {
+        return realize().applyTo((ISeq) args);
+    }
+
+    public int getRequiredArity() {
+        return 0;
+    }
+
+    public IObj withMeta(IPersistentMap meta) {
+        return ((IObj) realize()).withMeta(meta);
+    }
+
+    public IPersistentMap meta() {
+        return ((IMeta) realize()).meta();
+    }
+}
@@ -121,15 +121,20 @@ public class LockingTransaction{
     final HashMap<Ref, Object> vals = new HashMap<Ref, Object>();
     final HashSet<Ref> sets = new HashSet<Ref>();
     final HashSet<Ref> gets = new HashSet<Ref>();
+    final HashSet<Ref> borrows = new HashSet<Ref>();
+    final HashSet<JavaRef> preferred = new HashSet<JavaRef>();
+    final ArrayList<UndoJavaRef.UndoLog> undoLogs = new ArrayList<UndoJavaRef.UndoLog>();
     final TreeMap<Ref, ArrayList<CFn>> commutes = new TreeMap<Ref, ArrayList<CFn>>();
     final HashSet<Ref> ensures = new HashSet<Ref>();   //all hold readLock
 
-	private final HashMap<Keyword, ArrayList<EventFn>> eventListeners = new HashMap<Keyword, ArrayList<EventFn>>();
+	private final EventListeners eventListeners = new EventListeners();
 
 	private boolean orElseRunning = false;
+    private boolean validateReads = false;
     private STMBlockingBehavior blockingBehavior = null;
     private final static Collection<STMBlockingBehavior> blockingBehaviors =
         Collections.newSetFromMap(new ConcurrentHashMap<STMBlockingBehavior, Boolean>());
+    private static volatile STMChangeFeed changeFeed = null;
 
 
     void tryWriteLock(Ref ref){
@@ -169,7 +174,16 @@ public class LockingTransaction{
                     return blockAndBail(refinfo);
                 }
             }
+
+            //the object of a java-ref is not taken while other transactions borrow it
+            if(isBorrowedByOthers(ref))
+            {
+                ref.lock.writeLock().unlock();
+                unlocked = true;
+                return blockOnBorrows((JavaRef) ref);
+            }
             ref.tinfo = info;
+            takePreferred(ref);
             return ref.tvals == null ? null : ref.tvals.val;
         }
         finally
@@ -190,6 +204,7 @@ public class LockingTransaction{
 
         //stop prior to blocking
         stop(RETRY);
+        releaseBorrows();
         try
         {
             refinfo.latch.await(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS);
@@ -201,6 +216,108 @@ public class LockingTransaction{
         throw retryex;
     }
 
+    private boolean isBorrowedByOthers(Ref ref){
+        return ref instanceof JavaRef
+               && ((JavaRef) ref).borrowers.get() > (borrows.contains(ref) ? 1 : 0);
+    }
+
+    //waits for the transactions borrowing a java-ref to finish before retrying, as
+    //with blockAndBail the transaction stops and releases its own borrows first
+    private Object blockOnBorrows(JavaRef ref){
+        if(this.orElseRunning) {
+            throw retryex;
+        }
+        if(bargeTimeElapsed())
+            preferWriter(ref);
+        executeOnAbortEvents();
+        stop(RETRY);
+        releaseBorrows();
+        try
+        {
+            ref.awaitBorrowers(LOCK_WAIT_MSECS);
+        }
+        catch(InterruptedException e)
+        {
+            //ignore
+        }
+        throw retryex;
+    }
+
+    //waits for the preferred writer of a java-ref to take the object before retrying
+    private Object blockOnWriter(JavaRef ref){
+        if(this.orElseRunning) {
+            throw retryex;
+        }
+        executeOnAbortEvents();
+        stop(RETRY);
+        releaseBorrows();
+        try
+        {
+            ref.awaitWriter(LOCK_WAIT_MSECS);
+        }
+        catch(InterruptedException e)
+        {
+            //ignore
+        }
+        throw retryex;
+    }
+
+    //a writer waiting longer than the barge window stops new borrows of the java-ref, the
+    //preference is kept across retries until the writer takes the object or stops retrying
+    private void preferWriter(JavaRef ref){
+        if(ref.writer.compareAndSet(null, this) || ref.writer.get() == this)
+            preferred.add(ref);
+    }
+
+    private void takePreferred(Ref ref){
+        if(!preferred.isEmpty() && preferred.remove(ref))
+            ((JavaRef) ref).clearWriter(this);
+    }
+
+    private void releasePreferred(){
+        for(JavaRef ref : preferred)
+        {
+            ref.clearWriter(this);
+        }
+        preferred.clear();
+    }
+
+    private void releaseBorrows(){
+        for(Ref ref : borrows)
+        {
+            ((JavaRef) ref).release();
+        }
+        borrows.clear();
+    }
+
+    void addUndoLog(UndoJavaRef.UndoLog log){
+        undoLogs.add(log);
+    }
+
+    //undo logs are rolled back in reverse order if the transaction did not commit, otherwise they
+    //are released, every log is processed even if rolling back one of them throws
+    private void releaseUndoLogs(boolean committed){
+        Throwable failure = null;
+        for(int i = undoLogs.size() - 1; i >= 0; i--)
+        {
+            try
+            {
+                if(committed)
+                    undoLogs.get(i).finish();
+                else
+                    undoLogs.get(i).rollback();
+            }
+            catch(Throwable t)
+            {
+                if(failure == null)
+                    failure = t;
+            }
+        }
+        undoLogs.clear();
+        if(failure != null)
+            throw Util.sneakyThrow(failure);
+    }
+
     private void releaseIfEnsured(Ref ref){
         if(ensures.contains(ref))
         {
@@ -286,6 +403,7 @@ public class LockingTransaction{
 
     Object run(Callable fn) throws Exception{
         boolean done = false;
+        boolean retrying = false;
         Object ret = null;
         ArrayList<Ref> locked = new ArrayList<Ref>();
         ArrayList<Notify> notify = new ArrayList<Notify>();
@@ -299,6 +417,11 @@ public class LockingTransaction{
                 this.blockingBehavior = null;
             }
             gets.clear();
+            validateReads = false;
+            retrying = false;
+            STMChangeFeed reserved = null;
+            long reservedSequence = 0;
+            long reservedPoint = 0;
 
             try
             {
@@ -332,6 +455,13 @@ public class LockingTransaction{
                             if(!barge(refinfo))
                                 throw retryex;
                         }
+                        if(isBorrowedByOthers(ref))
+                        {
+                            if(bargeTimeElapsed())
+                                preferWriter((JavaRef) ref);
+                            throw retryex;
+                        }
+                        takePreferred(ref);
                         Object val = ref.tvals == null ? null : ref.tvals.val;
                         vals.put(ref, val);
                         for(CFn f : e.getValue())
@@ -352,22 +482,61 @@ public class LockingTransaction{
                         ref.validate(ref.getValidator(), e.getValue());
                     }
 
-					//Notify all listeners for "on-commit" event
-					PersistentHashSet persistentSets = PersistentHashSet.create(RT.seq(this.vals.keySet()));
-                    try {
-                        EventManager.runEvents(LockingTransaction.ONCOMMITKEYWORD, this.eventListeners, persistentSets);
-                    } catch(RetryEx ex) {
-                        throw new STMEventException("stm transaction restarted doing on-commit event");
-                    }
+					//Notify all listeners for "on-commit" event, the context is only built if needed
+					if(this.eventListeners.hasListeners(LockingTransaction.ONCOMMITKEYWORD))
+					{
+						PersistentHashSet persistentSets = PersistentHashSet.create(RT.seq(this.vals.keySet()));
+						try {
+							EventManager.runEvents(LockingTransaction.ONCOMMITKEYWORD, this.eventListeners, persistentSets);
+						} catch(RetryEx ex) {
+							throw new STMEventException("stm transaction restarted doing on-commit event");
+						}
+					}
+
+                    //in serializable mode the refs read must be unchanged since the read point,
+                    //otherwise only the leases of borrowed refs are validated
+                    if(validateReads)
+                        validateReads(gets);
+                    else if(!borrows.isEmpty())
+                        validateReads(borrows);
 
                     //at this point, all values computed, all refs to be written locked
                     //no more client code to be called
-                    long commitPoint = getCommitPoint();
+                    STMChangeFeed feed = changeFeed;
+                    Object[] changes = (feed == null || vals.isEmpty()) ? null : new Object[vals.size() * 3];
+                    long commitPoint;
+                    if(changes != null)
+                    {
+                        //a commit point taken after reading the head of the feed is larger than the commit
+                        //points of all slots reserved before it, so if the head is unchanged the slot is
+                        //reserved and otherwise a new commit point is taken, keeping entries in commit order
+                        for(;;)
+                        {
+                            long sequence = feed.head();
+                            commitPoint = getCommitPoint();
+                            if(feed.reserve(sequence))
+                            {
+                                reserved = feed;
+                                reservedSequence = sequence;
+                                reservedPoint = commitPoint;
+                                break;
+                            }
+                        }
+                    }
+                    else
+                        commitPoint = getCommitPoint();
+                    int c = 0;
                     for(Map.Entry<Ref, Object> e : vals.entrySet())
                     {
                         Ref ref = e.getKey();
                         Object oldval = ref.tvals == null ? null : ref.tvals.val;
                         Object newval = e.getValue();
+                        if(changes != null)
+                        {
+                            changes[c++] = ref;
+                            changes[c++] = oldval;
+                            changes[c++] = newval;
+                        }
                         int hcount = ref.histCount();
 
                         if(ref.tvals == null)
@@ -389,23 +558,33 @@ public class LockingTransaction{
                         if(ref.getWatches().count() > 0)
                             notify.add(new Notify(ref, oldval, newval));
                     }
+                    if(changes != null)
+                    {
+                        feed.publish(reservedSequence, commitPoint, changes);
+                        reserved = null;
+                    }
 
                     done = true;
                     info.status.set(COMMITTED);
                 }
             } catch(RetryEx ex) {
 				// Ignore the exception so we retry rather than fall out
+                retrying = true;
                 executeOnAbortEvents();
 			} catch(AbortException ae) {
                 // We want to terminate the transaction but have nothing to return,
                 // on-abort events are executed by stop before it throws this exception
                 return null;
-			} catch(Exception exception) {
+			} catch(Throwable throwable) {
+                //errors are rolled back too, as undo logs must run before the refs are released
                 executeOnAbortEvents();
-                throw exception;
+                throw Util.sneakyThrow(throwable);
             }
             finally
             {
+                //a slot reserved by a commit that threw is filled so cursors do not stall on it
+                if(reserved != null)
+                    reserved.publish(reservedSequence, reservedPoint, null);
                 for(int k = locked.size() - 1; k >= 0; --k)
                 {
                     locked.get(k).lock.writeLock().unlock();
@@ -417,17 +596,23 @@ public class LockingTransaction{
                 }
                 ensures.clear();
                 stop(done ? COMMITTED : RETRY);
+                releaseBorrows();
+                //writer preferences are kept for the next attempt only
+                if(!retrying || i == RETRY_LIMIT - 1)
+                    releasePreferred();
                 try
                 {
+                    //logs not rolled back by an abort are released here, also if an event threw
+                    releaseUndoLogs(done);
                     if(done) //re-dispatch out of transaction
                     {
                         for(Notify n : notify)
                         {
                             n.ref.notifyWatches(n.oldval, n.newval);
                         }
-                        for(Agent.Action action : actions)
+                        if(!actions.isEmpty())
                         {
-                            Agent.dispatchAction(action);
+                            Agent.dispatchActions(actions);
                         }
                         for (STMBlockingBehavior blockingBehavior : LockingTransaction.blockingBehaviors)
                         {
@@ -453,7 +638,16 @@ public class LockingTransaction{
         actions.add(action);
     }
 
-	HashMap<Keyword, ArrayList<EventFn>> getEventListeners() {
+    static public STMChangeFeed getChangeFeed(){
+        return changeFeed;
+    }
+
+    static public STMChangeFeed setChangeFeed(STMChangeFeed feed){
+        changeFeed = feed;
+        return feed;
+    }
+
+	EventListeners getEventListeners() {
 		return this.eventListeners;
 	}
 
@@ -499,6 +693,104 @@ public class LockingTransaction{
         return val;
     }
 
+    //destructive read of a java-ref with a single acquisition of the write lock, the most
+    //recent value returned by lock is the value at the read point as lock retries otherwise
+    Object doTake(JavaRef ref){
+        if(!info.running())
+            throw retryex;
+        if(commutes.containsKey(ref))
+            throw new IllegalStateException("Can't set after commute");
+        Object val;
+        if(sets.contains(ref))
+            val = vals.get(ref);
+        else
+        {
+            val = lock(ref);
+            sets.add(ref);
+        }
+        vals.put(ref, null);
+        return val;
+    }
+
+    void doSerializable(){
+        if(!info.running())
+            throw retryex;
+        this.validateReads = true;
+    }
+
+    //read without taking ownership, the borrow is registered on the java-ref so other
+    //transactions do not take the object until this transaction stops, and the lease is
+    //validated at commit instead of taking the write lock as a destructive read does
+    Object doBorrow(JavaRef ref){
+        if(!info.running())
+            throw retryex;
+        if(vals.containsKey(ref) || borrows.contains(ref))
+            return doGet(ref);
+        ref.lock.readLock().lock();
+        Info refinfo = ref.tinfo;
+        //the object is owned by a running transaction that may be mutating it
+        if(refinfo != null && refinfo != info && refinfo.running())
+        {
+            ref.lock.readLock().unlock();
+            blockAndBail(refinfo);
+        }
+        //a writer starved by borrowers takes the object before new borrows
+        LockingTransaction writer = ref.writer.get();
+        if(writer != null && writer != this)
+        {
+            ref.lock.readLock().unlock();
+            blockOnWriter(ref);
+        }
+        ref.borrowers.incrementAndGet();
+        borrows.add(ref);
+        ref.lock.readLock().unlock();
+        return doGet(ref);
+    }
+
+    //optimistic validation of the read set, write skew is detected at commit
+    //instead of holding read locks for the duration of the transaction as ensure
+    private void validateReads(HashSet<Ref> reads){
+        for(Ref ref : reads)
+        {
+            //writes are validated when locked and ensures hold a read lock
+            if(sets.contains(ref) || ensures.contains(ref))
+                continue;
+
+            //commutes are already write locked by this transaction
+            if(commutes.containsKey(ref))
+            {
+                if(ref.tvals != null && ref.tvals.point > readPoint)
+                    throw retryex;
+                continue;
+            }
+
+            try
+            {
+                if(!ref.lock.readLock().tryLock(LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS))
+                    throw retryex;
+            }
+            catch(InterruptedException e)
+            {
+                throw retryex;
+            }
+            try
+            {
+                //someone completed a write after our snapshot
+                if(ref.tvals != null && ref.tvals.point > readPoint)
+                    throw retryex;
+
+                //a writer exists that might commit after us
+                Info refinfo = ref.tinfo;
+                if(refinfo != null && refinfo != info && refinfo.running() && !barge(refinfo))
+                    throw retryex;
+            }
+            finally
+            {
+                ref.lock.readLock().unlock();
+            }
+        }
+    }
+
     void doEnsure(Ref ref){
         if(!info.running())
             throw retryex;
@@ -625,6 +917,8 @@ public class LockingTransaction{
             info.status.set(COMMITTING);
         }
         try {
+            //undo logs are rolled back before the events so a throwing event cannot prevent it
+            releaseUndoLogs(false);
             EventManager.runEvents(LockingTransaction.ONABORTKEYWORD, this.eventListeners, null);
         } catch(RetryEx ex) {
             throw new STMEventException("stm transaction restarted doing on-abort event");
@@ -0,0 +1,514 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import clojure.asm.ClassVisitor;
+import clojure.asm.Label;
+import clojure.asm.MethodVisitor;
+import clojure.asm.Opcodes;
+import clojure.asm.Type;
+import clojure.asm.commons.CodeSizeEvaluator;
+import clojure.asm.commons.GeneratorAdapter;
+import clojure.asm.commons.Method;
+import clojure.lang.Compiler.C;
+import clojure.lang.Compiler.Expr;
+import clojure.lang.Compiler.ObjExpr;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Class visitor measuring the methods of a compiled fn or type with CodeSizeEvaluator, as HotSpot
+ * never JIT compiles methods above 8000 bytes. A class with such a method is generated again with
+ * the branches of if and case expressions and the statements of bodies that do not fit in the
+ * method moved into private helper methods. A helper takes the arguments of the method it is split
+ * from and the locals the code moved into it reads, so the code is emitted unchanged, and the method
+ * clears the locals the code clears. Code jumping out of itself, like a recur to an enclosing loop,
+ * or entering and exiting monitors is never moved. A warning can be printed for the methods that
+ * are still too large, except for the methods defrecord generates.
+ */
+final class MethodSplitter extends ClassVisitor implements Opcodes {
+    /**
+     * The largest method HotSpot JIT compiles unless -XX:-DontCompileHugeMethods is set
+     */
+    static final int HUGE_METHOD_LIMIT = 8000;
+
+    /**
+     * The size methods are kept below when splitting them
+     */
+    static final int SPLIT_BUDGET = 6000;
+
+    /**
+     * The size of a method below which code too large for any method is emitted in it, so the
+     * branches and statements inside the code are moved instead of all of it
+     */
+    static final int DESCEND_LIMIT = 4500;
+
+    /**
+     * The smallest code moved into a helper, smaller code costs as much to call
+     */
+    static final int MIN_SPLIT_SIZE = 32;
+
+    static final String HELPER_PREFIX = "__split";
+
+    private static final Type OBJECT_TYPE = Type.getType(Object.class);
+
+    /**
+     * The methods defrecord generates, like valAt and assoc, which grow with the number of fields
+     */
+    private static final HashSet<String> RECORD_METHODS = new HashSet<String>();
+
+    static {
+        for (Class c : new Class[]{IRecord.class, IPersistentMap.class, ILookup.class, IKeywordLookup.class,
+                                   IHashEq.class, IObj.class, java.util.Map.class, Object.class}) {
+            for (java.lang.reflect.Method m : c.getMethods()) {
+                RECORD_METHODS.add(m.getName());
+            }
+        }
+    }
+
+    private final ObjExpr objx;
+    private final boolean splitting;
+    private final ArrayList<String> names = new ArrayList<String>();
+    private final ArrayList<CodeSizeEvaluator> sizes = new ArrayList<CodeSizeEvaluator>();
+    private boolean isRecord;
+
+    /**
+     * The method currently emitted, helpers are emitted while emitting the method they are split from
+     */
+    private CodeSizeEvaluator size;
+    private boolean isStatic;
+    private Type[] args;
+
+    /**
+     * Above zero while emitting code to measure it, as nothing is split then
+     */
+    private int measuring = 0;
+
+    /**
+     * The branches and statements that could have been moved in the code measured so far
+     */
+    private int candidates = 0;
+
+    private int helpers = 0;
+
+    /**
+     * Constructs a method splitter
+     *
+     * @param objx      The fn or type whose class is visited
+     * @param cv        The visitor generating the class
+     * @param splitting True if the code of large methods should be moved into helpers
+     */
+    MethodSplitter(ObjExpr objx, ClassVisitor cv, boolean splitting) {
+        super(ASM4, cv);
+        this.objx = objx;
+        this.splitting = splitting;
+    }
+
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        this.isRecord = interfaces != null && Arrays.asList(interfaces).contains("clojure/lang/IRecord");
+        super.visit(version, access, name, signature, superName, interfaces);
+    }
+
+    public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        CodeSizeEvaluator mv = new CodeSizeEvaluator(super.visitMethod(access, name, desc, signature, exceptions));
+        if ( ! name.startsWith("<")) {
+            this.names.add(name);
+            this.sizes.add(mv);
+        }
+        this.size = mv;
+        this.isStatic = (access & ACC_STATIC) != 0;
+        this.args = Type.getArgumentTypes(desc);
+        return mv;
+    }
+
+    /**
+     * Checks if a method of the class visited is too large for HotSpot to JIT compile
+     *
+     * @return True if a method is above HUGE_METHOD_LIMIT
+     */
+    boolean hasHugeMethods() {
+        for (CodeSizeEvaluator mv : this.sizes) {
+            if (mv.getMinSize() > HUGE_METHOD_LIMIT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Prints a warning for each method of the class visited that HotSpot will not JIT compile, the
+     * methods generated for a record are skipped as their size is not under the control of the user
+     */
+    void warnHugeMethods() {
+        for (int i = 0; i < this.sizes.size(); i++) {
+            int size = this.sizes.get(i).getMinSize();
+            if (size > HUGE_METHOD_LIMIT && ! (this.isRecord && RECORD_METHODS.contains(this.names.get(i)))) {
+                RT.errPrintWriter().format("Method size warning, %s:%d:%d - %s.%s is %d bytes, methods above %d bytes are not JIT compiled.\n",
+                                           Compiler.SOURCE_PATH.deref(), this.objx.line, this.objx.column,
+                                           this.objx.name, this.names.get(i), size, HUGE_METHOD_LIMIT);
+            }
+        }
+    }
+
+    /**
+     * Emits an expression that can be moved into a helper if the method it is emitted in is split
+     *
+     * @param context The context of the expression
+     * @param objx    The fn or type being emitted
+     * @param gen     The method being emitted
+     * @param expr    The expression
+     */
+    static void emit(C context, ObjExpr objx, GeneratorAdapter gen, Expr expr) {
+        MethodSplitter splitter = objx.splitter;
+        if (splitter == null || ! splitter.splitting) {
+            expr.emit(context, objx, gen);
+        } else if (splitter.measuring > 0) {
+            splitter.candidates++;
+            expr.emit(context, objx, gen);
+        } else {
+            splitter.emitSplittable(context, gen, expr);
+        }
+    }
+
+    /**
+     * Emits the first count expressions of a body as statements that can be moved into helpers if
+     * the method they are emitted in is split
+     *
+     * @param objx  The fn or type being emitted
+     * @param gen   The method being emitted
+     * @param exprs The expressions of the body
+     * @param count The number of statements
+     */
+    static void emitStatements(ObjExpr objx, GeneratorAdapter gen, IPersistentVector exprs, int count) {
+        MethodSplitter splitter = objx.splitter;
+        if (splitter == null || ! splitter.splitting || splitter.measuring > 0) {
+            for (int i = 0; i < count; i++) {
+                ((Expr) exprs.nth(i)).emit(C.STATEMENT, objx, gen);
+            }
+            if (splitter != null) {
+                splitter.candidates += count;
+            }
+        } else {
+            splitter.emitSplittableStatements(gen, exprs, count);
+        }
+    }
+
+    private void emitSplittable(C context, GeneratorAdapter gen, Expr expr) {
+        Region region = measure(context, expr);
+        if (inline(region)) {
+            expr.emit(context, this.objx, gen);
+        } else {
+            emitHelper(gen, region, new Expr[]{ expr }, context, false);
+        }
+    }
+
+    private void emitSplittableStatements(GeneratorAdapter gen, IPersistentVector exprs, int count) {
+        ArrayList<Expr> group = new ArrayList<Expr>();
+        Region merged = null;
+        for (int i = 0; i < count; i++) {
+            Expr expr = (Expr) exprs.nth(i);
+            Region region = measure(C.STATEMENT, expr);
+            if ( ! region.feasible || (group.isEmpty() && inline(region))) {
+                merged = emitStatementGroup(gen, group, merged);
+                expr.emit(C.STATEMENT, this.objx, gen);
+                continue;
+            }
+            if (merged != null && merged.size + region.size > SPLIT_BUDGET) {
+                merged = emitStatementGroup(gen, group, merged);
+            }
+            group.add(expr);
+            merged = merged == null ? region : merged.merge(region);
+        }
+        emitStatementGroup(gen, group, merged);
+    }
+
+    private Region emitStatementGroup(GeneratorAdapter gen, ArrayList<Expr> group, Region merged) {
+        if (merged != null && merged.size >= MIN_SPLIT_SIZE && paramSlots(merged) <= 255) {
+            emitHelper(gen, merged, group.toArray(new Expr[group.size()]), C.STATEMENT, true);
+        } else {
+            for (Expr expr : group) {
+                expr.emit(C.STATEMENT, this.objx, gen);
+            }
+        }
+        group.clear();
+        return null;
+    }
+
+    /**
+     * Checks if measured code should be emitted in the current method rather than a helper
+     */
+    private boolean inline(Region region) {
+        int current = this.size.getMinSize();
+        return current + region.size <= SPLIT_BUDGET
+            || region.size < MIN_SPLIT_SIZE
+            || ! region.feasible
+            || paramSlots(region) > 255
+            || (region.size > SPLIT_BUDGET && region.candidates > 0 && current < DESCEND_LIMIT);
+    }
+
+    /**
+     * Returns the number of local slots taken by the parameters of a helper for measured code
+     */
+    private int paramSlots(Region region) {
+        int slots = this.isStatic ? 0 : 1;
+        for (Type arg : this.args) {
+            slots += arg.getSize();
+        }
+        for (Type type : region.reads.values()) {
+            slots += type.getSize();
+        }
+        return slots;
+    }
+
+    /**
+     * Emits a call to a new helper method and the helper with the expressions as its body, the
+     * helper takes the arguments of the current method followed by the locals the code reads
+     */
+    private void emitHelper(GeneratorAdapter gen, Region region, Expr[] exprs, C context, boolean statements) {
+        ArrayList<Type> params = new ArrayList<Type>();
+        for (Type arg : this.args) {
+            params.add(arg);
+        }
+        params.addAll(region.reads.values());
+        Type returnType = context == C.STATEMENT ? Type.VOID_TYPE : OBJECT_TYPE;
+        Method m = new Method(HELPER_PREFIX + this.helpers++, returnType, params.toArray(new Type[params.size()]));
+        int access = ACC_PRIVATE + (this.isStatic ? ACC_STATIC : 0);
+
+        if ( ! this.isStatic) {
+            gen.loadThis();
+        }
+        for (int i = 0; i < this.args.length; i++) {
+            gen.loadArg(i);
+        }
+        for (Map.Entry<Integer, Type> e : region.reads.entrySet()) {
+            gen.visitVarInsn(e.getValue().getOpcode(ILOAD), e.getKey());
+        }
+        for (int cleared : region.cleared) {
+            gen.visitInsn(ACONST_NULL);
+            gen.visitVarInsn(ASTORE, cleared);
+        }
+        if (this.isStatic) {
+            gen.invokeStatic(this.objx.objtype, m);
+        } else {
+            gen.visitMethodInsn(INVOKESPECIAL, this.objx.objtype.getInternalName(), m.getName(), m.getDescriptor());
+        }
+
+        // The code moved into the helper is emitted as for the current method, so the arguments are
+        // at the same indexes and the locals are copied from the parameters after them
+        CodeSizeEvaluator outerSize = this.size;
+        boolean outerStatic = this.isStatic;
+        Type[] outerArgs = this.args;
+        MethodVisitor mv = visitMethod(access, m.getName(), m.getDescriptor(), null, null);
+        this.args = outerArgs;
+        GeneratorAdapter helper = new GeneratorAdapter(mv, access, m.getName(),
+                                                       Type.getMethodDescriptor(returnType, outerArgs));
+        helper.visitCode();
+        int[] locals = new int[region.reads.size()];
+        int i = 0;
+        for (Type type : region.reads.values()) {
+            locals[i++] = helper.newLocal(type);
+        }
+        i = 0;
+        for (Map.Entry<Integer, Type> e : region.reads.entrySet()) {
+            helper.loadLocal(locals[i++]);
+            helper.visitVarInsn(e.getValue().getOpcode(ISTORE), e.getKey());
+        }
+        for (i = 0; i < exprs.length; i++) {
+            exprs[i].emit(statements || i < exprs.length - 1 ? C.STATEMENT : context, this.objx, helper);
+        }
+        helper.returnValue();
+        helper.endMethod();
+        this.size = outerSize;
+        this.isStatic = outerStatic;
+        this.args = outerArgs;
+    }
+
+    /**
+     * Emits an expression to a scratch method to measure it and record the locals it uses
+     */
+    private Region measure(C context, Expr expr) {
+        Region region = new Region();
+        Tracker tracker = new Tracker();
+        int candidates = this.candidates;
+        this.measuring++;
+        try {
+            expr.emit(context, this.objx, new Recorder(region, tracker));
+        } finally {
+            this.measuring--;
+        }
+        region.size = tracker.getMinSize();
+        region.feasible = region.feasible && tracker.feasible && tracker.labels.containsAll(tracker.targets);
+        region.candidates = this.candidates - candidates;
+        this.candidates = candidates;
+        return region;
+    }
+
+    /**
+     * Measured code, with the type of each local of the enclosing method it reads by index and the
+     * locals it clears
+     */
+    private static final class Region {
+        final TreeMap<Integer, Type> reads = new TreeMap<Integer, Type>();
+        final TreeSet<Integer> cleared = new TreeSet<Integer>();
+        boolean feasible = true;
+        int size;
+        int candidates;
+
+        Region merge(Region region) {
+            for (Map.Entry<Integer, Type> e : region.reads.entrySet()) {
+                if ( ! this.reads.containsKey(e.getKey())) {
+                    this.reads.put(e.getKey(), e.getValue());
+                }
+            }
+            this.cleared.addAll(region.cleared);
+            this.feasible = this.feasible && region.feasible;
+            this.size += region.size;
+            this.candidates += region.candidates;
+            return this;
+        }
+    }
+
+    /**
+     * Records the locals read and cleared by the code emitted, a local read before it is stored
+     * is a local of the enclosing method as the locals of the code are always stored first
+     */
+    private final class Recorder extends GeneratorAdapter {
+        private final Region region;
+        private final HashSet<Integer> stored = new HashSet<Integer>();
+        private final Type[] args = MethodSplitter.this.args;
+        private final int argSlots = argIndex(this.args.length);
+
+        Recorder(Region region, Tracker tracker) {
+            super(ASM4, tracker, MethodSplitter.this.isStatic ? ACC_STATIC : 0, "measure",
+                  Type.getMethodDescriptor(Type.VOID_TYPE, MethodSplitter.this.args));
+            this.region = region;
+        }
+
+        public void visitVarInsn(int opcode, int var) {
+            record(opcode, var);
+            super.visitVarInsn(opcode, var);
+        }
+
+        public void loadArg(int arg) {
+            record(this.args[arg].getOpcode(ILOAD), argIndex(arg));
+            super.loadArg(arg);
+        }
+
+        public void storeArg(int arg) {
+            record(this.args[arg].getOpcode(ISTORE), argIndex(arg));
+            super.storeArg(arg);
+        }
+
+        private int argIndex(int arg) {
+            int index = MethodSplitter.this.isStatic ? 0 : 1;
+            for (int i = 0; i < arg; i++) {
+                index += this.args[i].getSize();
+            }
+            return index;
+        }
+
+        private void record(int opcode, int var) {
+            boolean store = opcode >= ISTORE && opcode <= ASTORE;
+            if (var < this.argSlots) {
+                // The arguments and this are passed to all helpers, so only clearing them is recorded
+                if (store && opcode == ASTORE) {
+                    this.region.cleared.add(var);
+                } else if (store) {
+                    this.region.feasible = false;
+                }
+            } else if (store) {
+                if ( ! this.region.reads.containsKey(var)) {
+                    this.stored.add(var);
+                } else if (opcode == ASTORE) {
+                    this.region.cleared.add(var);
+                } else {
+                    this.region.feasible = false;
+                }
+            } else if ( ! this.stored.contains(var) && ! this.region.reads.containsKey(var)) {
+                this.region.reads.put(var, loadType(opcode));
+            }
+        }
+
+        private Type loadType(int opcode) {
+            switch (opcode) {
+                case ILOAD:
+                    return Type.INT_TYPE;
+                case LLOAD:
+                    return Type.LONG_TYPE;
+                case FLOAD:
+                    return Type.FLOAT_TYPE;
+                case DLOAD:
+                    return Type.DOUBLE_TYPE;
+                default:
+                    return OBJECT_TYPE;
+            }
+        }
+    }
+
+    /**
+     * Measures the code emitted and records the labels it defines and jumps to
+     */
+    private static final class Tracker extends CodeSizeEvaluator {
+        final HashSet<Label> labels = new HashSet<Label>();
+        final HashSet<Label> targets = new HashSet<Label>();
+        boolean feasible = true;
+
+        Tracker() {
+            super(ASM4, null);
+        }
+
+        public void visitInsn(int opcode) {
+            if (opcode == MONITORENTER || opcode == MONITOREXIT) {
+                this.feasible = false;
+            }
+            super.visitInsn(opcode);
+        }
+
+        public void visitLabel(Label label) {
+            this.labels.add(label);
+            super.visitLabel(label);
+        }
+
+        public void visitJumpInsn(int opcode, Label label) {
+            this.targets.add(label);
+            super.visitJumpInsn(opcode, label);
+        }
+
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            this.targets.add(dflt);
+            for (Label label : labels) {
+                this.targets.add(label);
+            }
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            this.targets.add(dflt);
+            for (Label label : labels) {
+                this.targets.add(label);
+            }
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            this.targets.add(start);
+            this.targets.add(end);
+            this.targets.add(handler);
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import clojure.asm.ClassWriter;
+import clojure.asm.MethodVisitor;
+import clojure.asm.Opcodes;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Primitive interfaces for fns taking more arguments than the interfaces declared in IFn, named
+ * like them by the signature of the fn and owned by the namespace defining the fn, so the fns of
+ * my.ns taking five longs and returning a double implement my.ns$IFn$LLLLLD. An interface is
+ * generated in memory the first time a fn or an invocation with its signature is compiled, and
+ * is written to *compile-path* with the other classes of its namespace when compiling files, as
+ * the interfaces of a namespace are only needed by code compiled against it.
+ */
+public class PrimInterface {
+    static final String INFIX = "$IFn$";
+
+    /**
+     * Returns the name of the interface for a signature, the interface is generated if needed
+     *
+     * @param ns        The namespace of the fn, or of the var an invocation calls
+     * @param signature The class char of each argument followed by that of the return value
+     *
+     * @return          The name of the interface
+     */
+    static String forSignature(Namespace ns, String signature) {
+        String name = Compiler.munge(ns.name.name) + INFIX + signature;
+        load(name, signature);
+        if (ns == Compiler.currentNS() && RT.booleanCast(Compiler.COMPILE_FILES.deref())) {
+            String internalName = name.replace('.', '/');
+            if ( ! new File((String) Compiler.COMPILE_PATH.deref(), internalName + ".class").exists()) {
+                try {
+                    Compiler.writeClassFile(internalName, generate(internalName, signature));
+                } catch (IOException e) {
+                    throw Util.sneakyThrow(e);
+                }
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Returns the interface with a name, preferring the interface defined by this runtime or AOT
+     * compiled with its namespace over generating it, as fns and invocations compiled against
+     * different definitions of an interface would be incompatible
+     *
+     * @param name      The name of the interface
+     * @param signature The signature of the interface
+     *
+     * @return          The interface
+     */
+    static synchronized Class load(String name, String signature) {
+        Class c = DynamicClassLoader.findInMemoryClass(name);
+        if (c == null) {
+            try {
+                c = Class.forName(name, false, RT.baseLoader());
+            } catch (ClassNotFoundException e) {
+                String internalName = name.replace('.', '/');
+                byte[] bytecode = generate(internalName, signature);
+                c = new DynamicClassLoader(PrimInterface.class.getClassLoader()).defineClass(name, bytecode, null);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Generates an interface with an invokePrim method matching the signature
+     */
+    private static byte[] generate(String internalName, String signature) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (int i = 0; i < signature.length(); i++) {
+            if (i == signature.length() - 1) {
+                descriptor.append(')');
+            }
+            switch (signature.charAt(i)) {
+                case 'L':
+                    descriptor.append('J');
+                    break;
+                case 'D':
+                    descriptor.append('D');
+                    break;
+                case 'O':
+                    descriptor.append("Ljava/lang/Object;");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid primitive signature: " + signature);
+            }
+        }
+
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC + Opcodes.ACC_ABSTRACT + Opcodes.ACC_INTERFACE,
+                 internalName, null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC + Opcodes.ACC_ABSTRACT, "invokePrim",
+                                          descriptor.toString(), null, null);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
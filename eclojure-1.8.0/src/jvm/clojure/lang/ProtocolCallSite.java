@@ -0,0 +1,130 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Inline cache for a protocol method, linking the call directly to the implementation extended to
+ * the class of the receiver or to the protocol function if the class implements the protocol
+ * interface. The cache is guarded by the root of the method Var that is rebound whenever the
+ * protocol is extended, and sites seeing too many classes fall back to the protocol function and
+ * its MethodImplCache.
+ */
+public class ProtocolCallSite extends MutableCallSite {
+    static final int MAX_RELINKS = 8;
+
+    private static final Var FIND_PROTOCOL_METHOD = RT.var("clojure.core", "find-protocol-method");
+    private static final Keyword PROTOCOL_KEY = Keyword.intern(null, "protocol");
+    private static final Keyword ON_INTERFACE_KEY = Keyword.intern(null, "on-interface");
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle CHECK;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            FALLBACK = lookup.findVirtual(ProtocolCallSite.class, "fallback",
+                MethodType.methodType(Object.class, Object[].class));
+            CHECK = lookup.findStatic(ProtocolCallSite.class, "check",
+                MethodType.methodType(boolean.class, Class.class, Object.class, Object.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw Util.sneakyThrow(e);
+        }
+    }
+
+    private final Var var;
+    private final Keyword methodk;
+    private final MethodHandle root;
+    private final MethodHandle fallback;
+    private int relinks = 0;
+
+    ProtocolCallSite(MethodType type, Var var) {
+        super(type);
+        this.var = var;
+        this.methodk = Keyword.intern(var.sym);
+        this.root = var.rootSite().dynamicInvoker();
+        this.fallback = FALLBACK.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type);
+        setTarget(this.fallback);
+    }
+
+    /**
+     * Bootstrap method linking an invokedynamic instruction to an inline cache for a protocol method
+     *
+     * @param lookup The lookup of the class containing the instruction
+     * @param name   The name of the instruction, unused
+     * @param type   The type of the instruction, taking the receiver followed by the arguments
+     * @param ns     The namespace of the Var of the protocol method
+     * @param sym    The name of the Var of the protocol method
+     *
+     * @return       A new call site for the instruction
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String ns, String sym) {
+        return new ProtocolCallSite(type, RT.var(ns, sym));
+    }
+
+    /**
+     * Guard checking that the protocol was not extended and the receiver is of the cached class
+     */
+    static boolean check(Class expected, Object expectedRoot, Object root, Object target) {
+        return root == expectedRoot && Util.classOf(target) == expected;
+    }
+
+    /**
+     * Invoked on a cache miss, links the site to the implementation for the class of the receiver
+     *
+     * @param args The receiver followed by the arguments
+     *
+     * @return     The result of invoking the implementation
+     */
+    private Object fallback(Object[] args) {
+        Object protocolFn = this.var.getRawRoot();
+        Object target = args[0];
+        IFn impl = findImpl(target);
+        MethodHandle invoker = VarRootSite.invoker(type());
+
+        if (this.relinks++ < MAX_RELINKS) {
+            // The root of the method Var is constant until the protocol is extended again
+            MethodHandle test = MethodHandles.insertArguments(CHECK, 0, Util.classOf(target), protocolFn);
+            test = MethodHandles.foldArguments(test, this.root);
+            test = MethodHandles.dropArguments(test, 1, type().parameterList().subList(1, type().parameterCount()));
+            MethodHandle call = invoker.bindTo(impl != null ? impl : protocolFn);
+            setTarget(MethodHandles.guardWithTest(test, call, this.fallback));
+        } else {
+            setTarget(MethodHandles.foldArguments(invoker, this.root.asType(VarRootSite.FN_TYPE)));
+        }
+
+        IFn fn = impl != null ? impl : (IFn) protocolFn;
+        return fn.applyTo(ArraySeq.create(args));
+    }
+
+    /**
+     * Finds the function extended to the class of the receiver, null if the receiver implements the
+     * protocol interface or no implementation exists so the protocol function handles the call
+     */
+    private IFn findImpl(Object target) {
+        Var protocolVar = (Var) RT.get(this.var.meta(), PROTOCOL_KEY);
+        if (protocolVar == null) {
+            return null;
+        }
+        Object protocol = protocolVar.getRawRoot();
+        Object iface = RT.get(protocol, ON_INTERFACE_KEY);
+        if (iface instanceof Class && ((Class) iface).isInstance(target)) {
+            return null;
+        }
+        return (IFn) FIND_PROTOCOL_METHOD.invoke(protocol, this.methodk, target);
+    }
+}
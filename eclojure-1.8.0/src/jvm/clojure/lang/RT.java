@@ -290,6 +290,10 @@ private static final class DefaultComparator implements Comparator, Serializable
 
 static AtomicInteger id = new AtomicInteger(1);
 
+// Bound to an AtomicInteger to take ids from a block reserved by reserveIDs, so the
+// names generated while compiling a namespace do not depend on other threads
+final static public Var ID_BLOCK = Var.create(null).setDynamic();
+
 static public void addURL(Object url) throws MalformedURLException{
 	URL u = (url instanceof String) ? (new URL((String) url)) : (URL) url;
 	ClassLoader ccl = Thread.currentThread().getContextClassLoader();
@@ -446,9 +450,13 @@ static public void load(String scriptbase, boolean failIfNotFound) throws IOExce
 		finally {
 			Var.popThreadBindings();
 		}
+		if(loaded && classURL != null && CompileCache.isEnabled())
+			CompileCache.loadedClass(classfile, classURL);
 	}
 	if(!loaded && cljURL != null) {
-		if(booleanCast(Compiler.COMPILE_FILES.deref()))
+		if(CompileCache.isEnabled())
+			CompileCache.load(scriptbase, scriptfile);
+		else if(booleanCast(Compiler.COMPILE_FILES.deref()))
 			compile(scriptfile);
 		else
 			loadResourceScript(RT.class, scriptfile);
@@ -488,7 +496,12 @@ static void doInit() throws ClassNotFoundException, IOException{
 }
 
 static public int nextID(){
-	return id.getAndIncrement();
+	AtomicInteger block = (AtomicInteger) ID_BLOCK.deref();
+	return (block != null ? block : id).getAndIncrement();
+}
+
+static public int reserveIDs(int count){
+	return id.getAndAdd(count);
 }
 
 // Load a library in the System ClassLoader instead of Clojure's own.
@@ -2372,6 +2385,11 @@ static public Object stmOrElse(boolean orElseOnRetryEx, ISeq body) {
 	return transaction.doOrElse(orElseOnRetryEx, fns);
 }
 
+static public void stmSerializable() {
+	LockingTransaction transaction = LockingTransaction.getEx();
+    transaction.doSerializable();
+}
+
 static public void stmAbort() throws Exception {
 	LockingTransaction transaction = LockingTransaction.getEx();
     transaction.abort();
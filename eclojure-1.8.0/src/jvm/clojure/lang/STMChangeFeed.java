@@ -0,0 +1,191 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free ring buffer containing the writes of each committed transaction, the entries are
+ * ordered by the commit points of the transactions as a slot is only reserved if no other slot was
+ * reserved since before the transaction took its commit point
+ */
+public class STMChangeFeed {
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong head = new AtomicLong();
+    private final int mask;
+
+    /**
+     * Entry containing every ref written by a single transaction, or a tombstone without changes for a
+     * slot reserved by a transaction that failed to commit
+     */
+    public static class Entry {
+        final long sequence;
+        final long commitPoint;
+        final Object[] changes;
+
+        Entry(long sequence, long commitPoint, Object[] changes) {
+            this.sequence = sequence;
+            this.commitPoint = commitPoint;
+            this.changes = changes;
+        }
+
+        /**
+         * Returns the commit point of the transaction
+         *
+         * @return The commit point the transaction wrote its values at
+         */
+        public long commitPoint() {
+            return this.commitPoint;
+        }
+
+        /**
+         * Returns the changes made by the transaction
+         *
+         * @return A vector of [ref oldval newval] vectors
+         */
+        public IPersistentVector changes() {
+            ArrayList<IPersistentVector> changeList = new ArrayList<IPersistentVector>(this.changes.length / 3);
+            for (int i = 0; i < this.changes.length; i += 3) {
+                changeList.add(RT.vector(this.changes[i], this.changes[i + 1], this.changes[i + 2]));
+            }
+            return PersistentVector.create(changeList);
+        }
+    }
+
+    /**
+     * Cursor used by a single consumer for tailing the feed
+     */
+    public static class Cursor {
+        private final STMChangeFeed feed;
+        private long position;
+        private long missed;
+
+        Cursor(STMChangeFeed feed, long position) {
+            this.feed = feed;
+            this.position = position;
+        }
+
+        /**
+         * Returns the next batch of entries published after the cursor
+         *
+         * @param max The maximum number of entries to return
+         *
+         * @return    The entries in the order they were published
+         */
+        public ArrayList<Entry> poll(int max) {
+            ArrayList<Entry> batch = new ArrayList<Entry>();
+            while (batch.size() < max) {
+                Entry entry = this.feed.entries.get((int) (this.position & this.feed.mask));
+
+                // The slot is not yet published by the committing transaction, later slots are not read
+                // before it so entries are returned in commit order
+                if (entry == null || entry.sequence < this.position) {
+                    break;
+                }
+
+                // The consumer fell more than a full ring behind so the oldest entries are lost
+                if (entry.sequence > this.position) {
+                    long oldest = Math.max(this.position, this.feed.head.get() - this.feed.entries.length());
+                    this.missed += oldest - this.position;
+                    this.position = oldest;
+                    continue;
+                }
+                // Tombstones of transactions that failed to commit are skipped
+                if (entry.changes != null) {
+                    batch.add(entry);
+                }
+                this.position++;
+            }
+            return batch;
+        }
+
+        /**
+         * Returns the number of entries overwritten before the cursor could read them
+         *
+         * @return The number of entries missed by this cursor
+         */
+        public long missed() {
+            return this.missed;
+        }
+    }
+
+    /**
+     * Constructs a change feed keeping the most recent transactions
+     *
+     * @param capacity The number of transactions kept, rounded up to a power of two
+     */
+    public STMChangeFeed(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("The capacity of a change feed must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * Creates a cursor starting at the next transaction to be published
+     *
+     * @return A new cursor for a single consumer
+     */
+    public Cursor cursor() {
+        return new Cursor(this, this.head.get());
+    }
+
+    /**
+     * Returns the sequence number of the next slot to be reserved
+     *
+     * @return The sequence number to reserve after taking a commit point
+     */
+    long head() {
+        return this.head.get();
+    }
+
+    /**
+     * Reserves a slot if no other slot was reserved since its sequence number was read
+     *
+     * @param sequence The sequence number read with head before taking the commit point
+     *
+     * @return         True if the slot was reserved, otherwise a new commit point must be taken
+     */
+    boolean reserve(long sequence) {
+        return this.head.compareAndSet(sequence, sequence + 1);
+    }
+
+    /**
+     * Publishes the changes of a transaction to its reserved slot, called while the written refs are
+     * still locked. If the ring wrapped while the transaction committed, the slot might already hold
+     * a newer entry, which is never replaced so the entry is lost and counted as missed by cursors
+     *
+     * @param sequence    The sequence number of the slot reserved for the transaction
+     * @param commitPoint The commit point of the transaction
+     * @param changes     Flat array of ref, old value and new value for each written ref, or null for
+     *                    a tombstone if the transaction failed to commit
+     */
+    void publish(long sequence, long commitPoint, Object[] changes) {
+        int index = (int) (sequence & this.mask);
+        Entry entry = new Entry(sequence, commitPoint, changes);
+        Entry previous;
+        do {
+            previous = this.entries.get(index);
+            if (previous != null && previous.sequence > sequence) {
+                return;
+            }
+        } while ( ! this.entries.compareAndSet(index, previous, entry));
+    }
+}
@@ -0,0 +1,201 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Atom for commutative aggregation, swaps are applied to a partial value in a stripe selected by
+ * the current thread and the partial values are merged when the atom is dereferenced
+ */
+public class StripedAtom extends ARef implements IAtom {
+    /**
+     * Slots between the stripes so each stripe is placed in its own cache line
+     */
+    private static final int PAD = 16;
+
+    private final AtomicReferenceArray<Object> stripes;
+    private final int mask;
+    private final Object init;
+    private final IFn merge;
+
+    /**
+     * The merged value until the next swap, null if invalidated, or the token of the deref merging it
+     */
+    private final AtomicReference<Object> cache = new AtomicReference<Object>();
+
+    /**
+     * Holder for a merged value so that nil can be cached
+     */
+    private static class Merged {
+        final Object value;
+
+        Merged(Object value) {
+            this.value = value;
+        }
+    }
+
+    public StripedAtom(Object init, IFn merge) {
+        this(init, merge, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a striped atom
+     *
+     * @param init    The initial value of each stripe, must be an identity of the merge function
+     * @param merge   The function merging two partial values
+     * @param stripes The number of stripes, rounded up to a power of two
+     */
+    public StripedAtom(Object init, IFn merge, int stripes) {
+        if (stripes < 1 || stripes > (1 << 16)) {
+            throw new IllegalArgumentException("The number of stripes must be between 1 and 2^16");
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        this.stripes = new AtomicReferenceArray<Object>(size * PAD);
+        this.mask = size - 1;
+        this.init = init;
+        this.merge = merge;
+        for (int i = 0; i < size; i++) {
+            this.stripes.set(i * PAD, init);
+        }
+    }
+
+    /**
+     * Merges the partial values of all stripes, the result is cached until the next swap
+     *
+     * @return The merged value of the stripes
+     */
+    public Object deref() {
+        Object cached = this.cache.get();
+        if (cached instanceof Merged) {
+            return ((Merged) cached).value;
+        }
+
+        // A swap during the merge replaces the token so the possibly outdated value is not cached, the
+        // token is unique to this deref so a later deref installing its own token cannot be mistaken for it
+        Object token = null;
+        if (cached == null) {
+            Object candidate = new Object();
+            if (this.cache.compareAndSet(null, candidate)) {
+                token = candidate;
+            }
+        }
+        Object value = this.stripes.get(0);
+        for (int i = 1; i <= this.mask; i++) {
+            Object partial = this.stripes.get(i * PAD);
+            if (partial != this.init) {
+                value = this.merge.invoke(value, partial);
+            }
+        }
+        if (token != null) {
+            this.cache.compareAndSet(token, new Merged(value));
+        }
+        return value;
+    }
+
+    public Object swap(IFn f) {
+        return swapStripe(f, AtomContention.NOARGS);
+    }
+
+    public Object swap(IFn f, Object arg) {
+        return swapStripe(f, new Object[]{arg});
+    }
+
+    public Object swap(IFn f, Object arg1, Object arg2) {
+        return swapStripe(f, new Object[]{arg1, arg2});
+    }
+
+    public Object swap(IFn f, Object x, Object y, ISeq args) {
+        return swapStripe(f, RT.toArray(RT.listStar(x, y, args)));
+    }
+
+    /**
+     * Applies the function to the stripe of the current thread, moving to the next stripe if the
+     * compare and set fails as another thread is updating the same stripe
+     *
+     * @return The new partial value of the stripe and not the merged value of the atom
+     */
+    private Object swapStripe(IFn f, Object[] args) {
+        int stripe = stripe(Thread.currentThread().getId());
+        for (;;) {
+            int index = stripe * PAD;
+            Object v = this.stripes.get(index);
+            Object newv = apply(f, v, args);
+            if (this.stripes.compareAndSet(index, v, newv)) {
+                invalidate();
+                return newv;
+            }
+            stripe = (stripe + 1) & this.mask;
+        }
+    }
+
+    /**
+     * Clears the cached value, only writing the cache if it is set to keep swaps from contending on it
+     */
+    private void invalidate() {
+        if (this.cache.get() != null) {
+            this.cache.set(null);
+        }
+    }
+
+    private int stripe(long threadId) {
+        int h = (int) (threadId ^ (threadId >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    private static Object apply(IFn fn, Object v, Object[] args) {
+        switch (args.length) {
+            case 0:
+                return fn.invoke(v);
+            case 1:
+                return fn.invoke(v, args[0]);
+            case 2:
+                return fn.invoke(v, args[0], args[1]);
+            default:
+                return fn.applyTo(RT.cons(v, ArraySeq.create(args)));
+        }
+    }
+
+    /**
+     * Sets the first stripe to the value and the other stripes to the initial value, the stripes
+     * are not set atomically so swaps running concurrently with the reset may or may not be lost
+     *
+     * @param newval The new value of the atom
+     *
+     * @return       The new value of the atom
+     */
+    public Object reset(Object newval) {
+        this.stripes.set(0, newval);
+        for (int i = 1; i <= this.mask; i++) {
+            this.stripes.set(i * PAD, this.init);
+        }
+        this.cache.set(null);
+        return newval;
+    }
+
+    public boolean compareAndSet(Object oldv, Object newv) {
+        throw new UnsupportedOperationException("striped-atom does not support compare-and-set! as the value is split across stripes");
+    }
+
+    public void setValidator(IFn vf) {
+        throw new UnsupportedOperationException("striped-atom does not support validators as swaps only see a partial value");
+    }
+
+    public IRef addWatch(Object key, IFn callback) {
+        throw new UnsupportedOperationException("striped-atom does not support watches as swaps only see a partial value");
+    }
+}
@@ -0,0 +1,57 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter incremented by many threads, each thread adds to a stripe selected by its id and the
+ * stripes are summed when the counter is read, so threads rarely write to the same cache line
+ */
+class StripedCounter {
+    /**
+     * Slots between the stripes so each stripe is placed in its own cache line
+     */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray stripes;
+    private final int mask;
+
+    StripedCounter() {
+        int size = Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+        if (size < Runtime.getRuntime().availableProcessors()) {
+            size <<= 1;
+        }
+        this.stripes = new AtomicLongArray(size * PAD);
+        this.mask = size - 1;
+    }
+
+    void increment() {
+        long threadId = Thread.currentThread().getId();
+        int h = (int) (threadId ^ (threadId >>> 32)) * 0x9E3779B9;
+        this.stripes.getAndIncrement(((h ^ (h >>> 16)) & this.mask) * PAD);
+    }
+
+    /**
+     * Sums the stripes, increments made concurrently with the sum may or may not be included
+     *
+     * @return The number of increments
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i <= this.mask; i++) {
+            sum += this.stripes.get(i * PAD);
+        }
+        return sum;
+    }
+}
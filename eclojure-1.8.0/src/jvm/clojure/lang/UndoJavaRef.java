@@ -0,0 +1,340 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JavaRef for large mutable maps and lists that are mutated in place by the transaction owning
+ * the ref, the mutations are recorded in an undo log that is rolled back if the transaction aborts.
+ * Reads outside of transactions are not isolated from the mutations of the owning transaction.
+ */
+public class UndoJavaRef extends JavaRef {
+    /**
+     * The undo log of the last transaction owning the ref and the wrapper it mutates the value through
+     */
+    private volatile UndoLog undoLog;
+    private volatile Object wrapper;
+
+    public UndoJavaRef(Object initVal) {
+        this(initVal, null);
+    }
+
+    public UndoJavaRef(Object initVal, IPersistentMap meta) {
+        super(checkValue(initVal), meta);
+    }
+
+    /**
+     * Takes ownership of the value and returns a wrapper recording all mutations in an undo log,
+     * the value is not copied and other transactions cannot access it until the transaction ends
+     */
+    public Object deref() {
+        LockingTransaction t = LockingTransaction.getRunning();
+        if(t == null)
+            return currentVal();
+
+        Object value = t.doGet(this);
+        t.doSet(this, value);
+        UndoLog previous = this.undoLog;
+        if(previous != null && previous.owner == t.info) {
+            if(unwrap(this.wrapper) == value)
+                return this.wrapper;
+        } else if(previous != null) {
+            // A barged transaction might still be mutating or rolling back the value
+            previous.awaitFinished(t);
+        }
+
+        // The undo log is rolled back or released by the transaction itself, not by its events,
+        // so listeners that throw cannot leave the ref owned by a finished transaction
+        UndoLog log = new UndoLog(t.info);
+        t.addUndoLog(log);
+        this.wrapper = wrap(checkValue(value), log);
+        this.undoLog = log;
+        return this.wrapper;
+    }
+
+    public Object borrow() {
+        throw new java.lang.UnsupportedOperationException("undo-java-ref does not support borrow as the value is mutated in place");
+    }
+
+    public Object set(Object val) {
+        return super.set(checkValue(unwrap(val)));
+    }
+
+    public Object alter(IFn fn, ISeq args) {
+        LockingTransaction t = LockingTransaction.getEx();
+        return t.doSet(this, checkValue(unwrap(fn.applyTo(RT.cons(deref(), args)))));
+    }
+
+    public Object commute(IFn fn, ISeq args) {
+        throw new java.lang.UnsupportedOperationException("undo-java-ref does not support commute as the function is run again at commit");
+    }
+
+    private static Object checkValue(Object value) {
+        if(value != null && ! (value instanceof Map) && ! (value instanceof List))
+            throw new IllegalArgumentException("undo-java-ref can only contain a java.util.Map or java.util.List");
+        return value;
+    }
+
+    private static Object wrap(Object value, UndoLog undoLog) {
+        if(value instanceof Map)
+            return new UndoMap((Map) value, undoLog);
+        if(value instanceof List)
+            return new UndoList((List) value, undoLog);
+        return value;
+    }
+
+    private static Object unwrap(Object value) {
+        if(value instanceof UndoMap)
+            return ((UndoMap) value).map;
+        if(value instanceof UndoList)
+            return ((UndoList) value).list;
+        return value;
+    }
+
+    /**
+     * Log of the inverse of each mutation, run in reverse order if the owning transaction aborts
+     */
+    static class UndoLog {
+        static final int MAP_PUT = 0;
+        static final int MAP_REMOVE = 1;
+        static final int LIST_SET = 2;
+        static final int LIST_ADD = 3;
+        static final int LIST_REMOVE = 4;
+
+        private final ArrayList<Object[]> entries = new ArrayList<Object[]>();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        final LockingTransaction.Info owner;
+
+        UndoLog(LockingTransaction.Info owner) {
+            this.owner = owner;
+        }
+
+        void awaitFinished(LockingTransaction t) {
+            try {
+                if( ! this.finished.await(LockingTransaction.LOCK_WAIT_MSECS, TimeUnit.MILLISECONDS))
+                    throw t.retryex;
+            } catch(InterruptedException e) {
+                throw t.retryex;
+            }
+        }
+
+        void record(int op, Object target, Object key, Object value) {
+            this.entries.add(new Object[] { op, target, key, value });
+        }
+
+        /**
+         * Releases the value to other transactions after the owning transaction committed
+         */
+        void finish() {
+            this.entries.clear();
+            this.finished.countDown();
+        }
+
+        /**
+         * Undoes the mutations and releases the value, undoing a log again does nothing
+         */
+        void rollback() {
+            // The latch is released even if undoing fails, so later transactions are not blocked
+            try {
+                for(int i = this.entries.size() - 1; i >= 0; i--) {
+                    Object[] entry = this.entries.get(i);
+                    switch((Integer) entry[0]) {
+                        case MAP_PUT:
+                            ((Map) entry[1]).put(entry[2], entry[3]);
+                            break;
+                        case MAP_REMOVE:
+                            ((Map) entry[1]).remove(entry[2]);
+                            break;
+                        case LIST_SET:
+                            ((List) entry[1]).set((Integer) entry[2], entry[3]);
+                            break;
+                        case LIST_ADD:
+                            ((List) entry[1]).add((Integer) entry[2], entry[3]);
+                            break;
+                        case LIST_REMOVE:
+                            ((List) entry[1]).remove((int) (Integer) entry[2]);
+                            break;
+                    }
+                }
+            } finally {
+                this.entries.clear();
+                this.finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Map recording the inverse of all mutations, views are read only so all mutations are logged
+     */
+    static class UndoMap implements Map {
+        final Map map;
+        private final UndoLog undoLog;
+
+        UndoMap(Map map, UndoLog undoLog) {
+            this.map = map;
+            this.undoLog = undoLog;
+        }
+
+        private void recordRestore(Object key) {
+            if(this.map.containsKey(key))
+                this.undoLog.record(UndoLog.MAP_PUT, this.map, key, this.map.get(key));
+            else
+                this.undoLog.record(UndoLog.MAP_REMOVE, this.map, key, null);
+        }
+
+        public Object put(Object key, Object value) {
+            recordRestore(key);
+            return this.map.put(key, value);
+        }
+
+        public Object remove(Object key) {
+            if( ! this.map.containsKey(key))
+                return null;
+            recordRestore(key);
+            return this.map.remove(key);
+        }
+
+        public void putAll(Map m) {
+            for(Object o : m.entrySet()) {
+                Map.Entry e = (Map.Entry) o;
+                put(e.getKey(), e.getValue());
+            }
+        }
+
+        public void clear() {
+            for(Object key : this.map.keySet().toArray())
+                remove(key);
+        }
+
+        public int size() { return this.map.size(); }
+        public boolean isEmpty() { return this.map.isEmpty(); }
+        public boolean containsKey(Object key) { return this.map.containsKey(key); }
+        public boolean containsValue(Object value) { return this.map.containsValue(value); }
+        public Object get(Object key) { return this.map.get(key); }
+        public Set keySet() { return Collections.unmodifiableSet(this.map.keySet()); }
+        public Collection values() { return Collections.unmodifiableCollection(this.map.values()); }
+        public Set entrySet() { return Collections.unmodifiableMap(this.map).entrySet(); }
+        public boolean equals(Object o) { return this.map.equals(o); }
+        public int hashCode() { return this.map.hashCode(); }
+        public String toString() { return this.map.toString(); }
+    }
+
+    /**
+     * List recording the inverse of all mutations, views are read only so all mutations are logged
+     */
+    static class UndoList implements List {
+        final List list;
+        private final UndoLog undoLog;
+
+        UndoList(List list, UndoLog undoLog) {
+            this.list = list;
+            this.undoLog = undoLog;
+        }
+
+        public Object set(int index, Object element) {
+            Object old = this.list.set(index, element);
+            this.undoLog.record(UndoLog.LIST_SET, this.list, index, old);
+            return old;
+        }
+
+        public void add(int index, Object element) {
+            this.list.add(index, element);
+            this.undoLog.record(UndoLog.LIST_REMOVE, this.list, index, null);
+        }
+
+        public boolean add(Object element) {
+            add(this.list.size(), element);
+            return true;
+        }
+
+        public Object remove(int index) {
+            Object old = this.list.remove(index);
+            this.undoLog.record(UndoLog.LIST_ADD, this.list, index, old);
+            return old;
+        }
+
+        public boolean remove(Object o) {
+            int index = this.list.indexOf(o);
+            if(index < 0)
+                return false;
+            remove(index);
+            return true;
+        }
+
+        public boolean addAll(Collection c) {
+            for(Object o : c)
+                add(o);
+            return ! c.isEmpty();
+        }
+
+        public boolean addAll(int index, Collection c) {
+            for(Object o : c)
+                add(index++, o);
+            return ! c.isEmpty();
+        }
+
+        public boolean removeAll(Collection c) {
+            boolean changed = false;
+            for(int i = this.list.size() - 1; i >= 0; i--) {
+                if(c.contains(this.list.get(i))) {
+                    remove(i);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        public boolean retainAll(Collection c) {
+            boolean changed = false;
+            for(int i = this.list.size() - 1; i >= 0; i--) {
+                if( ! c.contains(this.list.get(i))) {
+                    remove(i);
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        public void clear() {
+            for(int i = this.list.size() - 1; i >= 0; i--)
+                remove(i);
+        }
+
+        public int size() { return this.list.size(); }
+        public boolean isEmpty() { return this.list.isEmpty(); }
+        public boolean contains(Object o) { return this.list.contains(o); }
+        public boolean containsAll(Collection c) { return this.list.containsAll(c); }
+        public Object get(int index) { return this.list.get(index); }
+        public int indexOf(Object o) { return this.list.indexOf(o); }
+        public int lastIndexOf(Object o) { return this.list.lastIndexOf(o); }
+        public Object[] toArray() { return this.list.toArray(); }
+        public Object[] toArray(Object[] a) { return this.list.toArray(a); }
+        public Iterator iterator() { return Collections.unmodifiableList(this.list).iterator(); }
+        public ListIterator listIterator() { return Collections.unmodifiableList(this.list).listIterator(); }
+        public ListIterator listIterator(int index) { return Collections.unmodifiableList(this.list).listIterator(index); }
+        public List subList(int from, int to) { return Collections.unmodifiableList(this.list).subList(from, to); }
+        public boolean equals(Object o) { return this.list.equals(o); }
+        public int hashCode() { return this.list.hashCode(); }
+        public String toString() { return this.list.toString(); }
+    }
+}
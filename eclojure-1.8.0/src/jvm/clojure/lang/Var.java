@@ -1,3 +1,4 @@
+// eClojure
 /**
  *   Copyright (c) Rich Hickey. All rights reserved.
  *   The use and distribution terms for this software are covered by the
@@ -12,6 +13,11 @@
 
 package clojure.lang;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 
@@ -21,10 +27,16 @@ static class TBox{
 
 volatile Object val;
 final Thread thread;
+final Var var;
 
 public TBox(Thread t, Object val){
+	this(t, val, null);
+}
+
+TBox(Thread t, Object val, Var var){
 	this.thread = t;
 	this.val = val;
+	this.var = var;
 }
 }
 
@@ -45,21 +57,28 @@ static public class Unbound extends AFn{
 }
 
 static class Frame{
-	final static Frame TOP = new Frame(PersistentHashMap.EMPTY, null);
-	//Var->TBox
-	Associative bindings;
-	//Var->val
-//	Associative frameBindings;
+	final static Frame TOP = new Frame(new TBox[0], null);
+	//Var slot->TBox, never modified after the frame is pushed
+	final TBox[] boxes;
 	Frame prev;
+	//frame without prev shared by every conveyance of this frame
+	Frame conveyed;
 
-	public Frame(Associative bindings, Frame prev){
-//		this.frameBindings = frameBindings;
-		this.bindings = bindings;
+	public Frame(TBox[] boxes, Frame prev){
+		this.boxes = boxes;
 		this.prev = prev;
+		this.conveyed = prev == null ? this : null;
+	}
+
+	TBox get(int slot){
+		return slot < boxes.length ? boxes[slot] : null;
 	}
 
     	protected Object clone() {
-		return new Frame(this.bindings, null);
+		Frame c = conveyed;
+		if(c == null)
+			conveyed = c = new Frame(this.boxes, null);
+		return c;
     	}
 
 }
@@ -73,6 +92,26 @@ static final ThreadLocal<Frame> dvals = new ThreadLocal<Frame>(){
 
 static public volatile int rev = 0;
 
+//slots are assigned to vars in the order they are first bound so frames only
+//need to be as long as the highest slot of the vars bound in them
+static final Object slotLock = new Object();
+static int nextSlot = 0;
+
+//the slots of collected vars are reused, as with-local-vars binds a new var each time it is run,
+//a frame can not hold the slot of a collected var as its box references the var
+static final ReferenceQueue<Var> collectedSlots = new ReferenceQueue<Var>();
+static final HashSet<SlotRef> slotRefs = new HashSet<SlotRef>();
+static final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+static class SlotRef extends WeakReference<Var>{
+	final int slot;
+
+	SlotRef(Var v, int slot){
+		super(v, collectedSlots);
+		this.slot = slot;
+	}
+}
+
 static Keyword privateKey = Keyword.intern(null, "private");
 static IPersistentMap privateMeta = new PersistentArrayMap(new Object[]{privateKey, Boolean.TRUE});
 static Keyword macroKey = Keyword.intern(null, "macro");
@@ -81,9 +120,13 @@ static Keyword nsKey = Keyword.intern(null, "ns");
 //static Keyword tagKey = Keyword.intern(null, "tag");
 
 volatile Object root;
+//linked by code compiled with :constant-roots, updated whenever the root changes
+volatile VarRootSite rootSite;
 
 volatile boolean dynamic = false;
 transient final AtomicBoolean threadBound;
+//written before threadBound is set so it is visible to threads seeing threadBound
+int slot = -1;
 public final Symbol sym;
 public final Namespace ns;
 
@@ -98,7 +141,9 @@ public static Object cloneThreadBindingFrame(){
 }
 
 public static void resetThreadBindingFrame(Object frame){
-	dvals.set((Frame) frame);
+	//pool threads usually run several tasks conveying the same frame
+	if(dvals.get() != frame)
+		dvals.set((Frame) frame);
 }
 
 public Var setDynamic(){
@@ -182,7 +227,7 @@ Var(Namespace ns, Symbol sym, Object root){
 }
 
 public boolean isBound(){
-	return hasRoot() || (threadBound.get() && dvals.get().bindings.containsKey(this));
+	return hasRoot() || getThreadBinding() != null;
 }
 
 final public Object get(){
@@ -200,7 +245,7 @@ final public Object deref(){
 
 public void setValidator(IFn vf){
 	if(hasRoot())
-		validate(vf, root);
+		validate(vf, getRealizedRoot());
 	validator = vf;
 }
 
@@ -255,6 +300,28 @@ final public Object getRawRoot(){
 		return root;
 }
 
+//read emitted by code compiled with :lazy-roots, as only such code defers the root of a var
+final public Object getRealizedRoot(){
+	Object r = root;
+	if(r instanceof LazyRoot)
+		return ((LazyRoot) r).realize();
+	return r;
+}
+
+//replaces a root deferred by code compiled with :lazy-roots once its function is constructed
+synchronized void realizeRoot(LazyRoot lazy, Object fn){
+	if(root == lazy)
+		{
+		root = fn;
+		rootChanged();
+		}
+}
+
+//the old root passed to watches, a deferred root is only constructed if the var is watched
+private Object watchedRoot(){
+	return getWatches().count() > 0 ? getRealizedRoot() : root;
+}
+
 public Object getTag(){
 	return meta().valAt(RT.TAG_KEY);
 }
@@ -267,51 +334,93 @@ final public boolean hasRoot(){
 	return !(root instanceof Unbound);
 }
 
+synchronized VarRootSite rootSite(){
+	if(rootSite == null)
+		rootSite = new VarRootSite(getRealizedRoot());
+	return rootSite;
+}
+
+//called with the lock held by every method changing the root
+private void rootChanged(){
+	VarRootSite site = rootSite;
+	if(site != null)
+		site.update(root);
+}
+
 //binding root always clears macro flag
 synchronized public void bindRoot(Object root){
 	validate(getValidator(), root);
-	Object oldroot = this.root;
+	Object oldroot = watchedRoot();
 	this.root = root;
 	++rev;
+	rootChanged();
         alterMeta(dissoc, RT.list(macroKey));
-    notifyWatches(oldroot,this.root);
+    notifyWatches(oldroot,watchedRoot());
 }
 
 synchronized void swapRoot(Object root){
 	validate(getValidator(), root);
-	Object oldroot = this.root;
+	Object oldroot = watchedRoot();
 	this.root = root;
 	++rev;
+	rootChanged();
     notifyWatches(oldroot,root);
 }
 
 synchronized public void unbindRoot(){
 	this.root = new Unbound(this);
 	++rev;
+	rootChanged();
 }
 
 synchronized public void commuteRoot(IFn fn) {
-	Object newRoot = fn.invoke(root);
+	Object oldroot = getRealizedRoot();
+	Object newRoot = fn.invoke(oldroot);
 	validate(getValidator(), newRoot);
-	Object oldroot = root;
 	this.root = newRoot;
 	++rev;
+	rootChanged();
     notifyWatches(oldroot,newRoot);
 }
 
 synchronized public Object alterRoot(IFn fn, ISeq args) {
-	Object newRoot = fn.applyTo(RT.cons(root, args));
+	Object oldroot = getRealizedRoot();
+	Object newRoot = fn.applyTo(RT.cons(oldroot, args));
 	validate(getValidator(), newRoot);
-	Object oldroot = root;
 	this.root = newRoot;
 	++rev;
+	rootChanged();
     notifyWatches(oldroot,newRoot);
 	return newRoot;
 }
 
+int slot(){
+	int s = slot;
+	if(s < 0)
+		{
+		synchronized(slotLock)
+			{
+			if(slot < 0)
+				{
+				for(SlotRef r = (SlotRef) collectedSlots.poll(); r != null; r = (SlotRef) collectedSlots.poll())
+					{
+					slotRefs.remove(r);
+					freeSlots.push(r.slot);
+					}
+				slot = freeSlots.isEmpty() ? nextSlot++ : freeSlots.pop();
+				slotRefs.add(new SlotRef(this, slot));
+				}
+			s = slot;
+			}
+		}
+	return s;
+}
+
 public static void pushThreadBindings(Associative bindings){
 	Frame f = dvals.get();
-	Associative bmap = f.bindings;
+	TBox[] boxes = f.boxes;
+	boolean copied = false;
+	Thread thread = Thread.currentThread();
 	for(ISeq bs = bindings.seq(); bs != null; bs = bs.next())
 		{
 		IMapEntry e = (IMapEntry) bs.first();
@@ -319,10 +428,16 @@ public static void pushThreadBindings(Associative bindings){
 		if(!v.dynamic)
 			throw new IllegalStateException(String.format("Can't dynamically bind non-dynamic var: %s/%s", v.ns, v.sym));
 		v.validate(v.getValidator(), e.val());
+		int s = v.slot();
+		if(!copied || s >= boxes.length)
+			{
+			boxes = Arrays.copyOf(boxes, Math.max(boxes.length, s + 1));
+			copied = true;
+			}
+		boxes[s] = new TBox(thread, e.val(), v);
 		v.threadBound.set(true);
-		bmap = bmap.assoc(v, new TBox(Thread.currentThread(), e.val()));
 		}
-	dvals.set(new Frame(bmap, f));
+	dvals.set(new Frame(boxes, f));
 }
 
 public static void popThreadBindings(){
@@ -339,23 +454,17 @@ public static void popThreadBindings(){
 public static Associative getThreadBindings(){
 	Frame f = dvals.get();
 	IPersistentMap ret = PersistentHashMap.EMPTY;
-	for(ISeq bs = f.bindings.seq(); bs != null; bs = bs.next())
+	for(TBox b : f.boxes)
 		{
-		IMapEntry e = (IMapEntry) bs.first();
-		Var v = (Var) e.key();
-		TBox b = (TBox) e.val();
-		ret = ret.assoc(v, b.val);
+		if(b != null)
+			ret = ret.assoc(b.var, b.val);
 		}
 	return ret;
 }
 
 public final TBox getThreadBinding(){
 	if(threadBound.get())
-		{
-		IMapEntry e = dvals.get().bindings.entryAt(this);
-		if(e != null)
-			return (TBox) e.val();
-		}
+		return dvals.get().get(slot);
 	return null;
 }
 
@@ -0,0 +1,96 @@
+// eClojure
+/**
+ * Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+ * Søren Kejser Jensen. All rights reserved.
+ * The use and distribution terms for this software are covered by the Eclipse
+ * Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+ * can be found in the file epl-v10.html at the root of this distribution. By
+ * using this software in any fashion, you are agreeing to be bound by the
+ * terms of this license.
+ * You must not remove this notice, or any other, from this software.
+ */
+
+package clojure.lang;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Call site returning the root of a Var as a constant, shared by all invokedynamic instructions
+ * reading or invoking the Var in code compiled with :constant-roots or :invokedynamic. The JIT can
+ * then inline through the root until it is changed, which replaces the target and deoptimizes the
+ * code that depends on it.
+ * Only loaded by compiled code so the runtime still works on JVMs without java.lang.invoke.
+ */
+public class VarRootSite extends MutableCallSite {
+    static final MethodType ROOT_TYPE = MethodType.methodType(Object.class);
+    static final MethodType FN_TYPE = MethodType.methodType(IFn.class);
+
+    VarRootSite(Object root) {
+        super(MethodHandles.constant(Object.class, root));
+    }
+
+    /**
+     * Replaces the constant returned by the call site and makes it visible to all threads
+     *
+     * @param root The new root of the Var
+     */
+    void update(Object root) {
+        setTarget(MethodHandles.constant(Object.class, root));
+        MutableCallSite.syncAll(new MutableCallSite[]{ this });
+    }
+
+    /**
+     * Bootstrap method linking an invokedynamic instruction to the root call site of a Var
+     *
+     * @param lookup The lookup of the class containing the instruction
+     * @param name   The name of the instruction, unused
+     * @param type   The type of the instruction, must be ()Object
+     * @param ns     The namespace of the Var
+     * @param sym    The name of the Var
+     *
+     * @return       The call site shared by all instructions reading the Var
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type, String ns, String sym) {
+        if ( ! ROOT_TYPE.equals(type)) {
+            throw new IllegalArgumentException("Var roots can only be linked as " + ROOT_TYPE + " and not as " + type);
+        }
+        return RT.var(ns, sym).rootSite();
+    }
+
+    /**
+     * Bootstrap method linking an invokedynamic instruction to an invocation of the root of a Var,
+     * the root is folded into the call so the JIT sees the function invoked as a constant
+     *
+     * @param lookup The lookup of the class containing the instruction
+     * @param name   The name of the instruction, unused
+     * @param type   The type of the instruction, taking between zero and twenty objects
+     * @param ns     The namespace of the Var
+     * @param sym    The name of the Var
+     *
+     * @return       A call site invoking the current root of the Var
+     */
+    public static CallSite bootstrapInvoke(MethodHandles.Lookup lookup, String name, MethodType type, String ns, String sym) {
+        MethodHandle root = RT.var(ns, sym).rootSite().dynamicInvoker().asType(FN_TYPE);
+        return new ConstantCallSite(MethodHandles.foldArguments(invoker(type), root));
+    }
+
+    /**
+     * Returns a method handle for the invoke method of IFn matching the type of an instruction
+     *
+     * @param type The type of the instruction
+     *
+     * @return     A handle taking the function followed by the arguments of the instruction
+     */
+    static MethodHandle invoker(MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findVirtual(IFn.class, "invoke", type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("IFn has no invoke method of type " + type, e);
+        }
+    }
+}
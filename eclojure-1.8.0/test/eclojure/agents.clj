@@ -0,0 +1,217 @@
+; eClojure
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(ns eclojure.agents
+  (:use clojure.test clojure.eclojure))
+
+;; Waits for the queue of the agent to be empty, await would send to a full queue
+(defn- await-queue [a]
+  (loop [tries 500]
+    (when (and (pos? tries) (pos? (.getQueueCount ^clojure.lang.Agent a)))
+      (Thread/sleep 10)
+      (recur (dec tries))))
+  (zero? (.getQueueCount ^clojure.lang.Agent a)))
+
+;; Blocks the agent until the returned latch is counted down
+(defn- block-agent [a]
+  (let [latch (java.util.concurrent.CountDownLatch. 1)]
+    (send-off a (fn [state] (.await latch) state))
+    latch))
+
+; Executors
+(deftest agent-executor-test
+  (let [executed (atom 0)
+        executor (reify java.util.concurrent.Executor
+                   (execute [_ runnable]
+                     (swap! executed inc)
+                     (.start (Thread. ^Runnable runnable))))
+        test-agent (set-agent-executor! (agent 0) executor)]
+    (send test-agent inc)
+    (send-off test-agent inc)
+    (is (await-queue test-agent))
+    (is (== 2 @test-agent))
+    (is (== 2 @executed))))
+
+(deftest bounded-executor-test
+  (let [test-agent (set-agent-executor! (agent 0) (bounded-executor 1))]
+    (dotimes [_ 100]
+      (send test-agent inc))
+    (is (await-queue test-agent))
+    (is (== 100 @test-agent))))
+
+(deftest bounded-executor-saturated-test
+  (let [executor (bounded-executor 1)
+        test-agents (doall (for [_ (range 5)]
+                             (set-agent-executor! (agent nil) executor)))
+        latch (block-agent (first test-agents))]
+    (doseq [test-agent (rest test-agents)]
+      (send test-agent (fn [_] (Thread/currentThread))))
+    (.countDown latch)
+    (apply await test-agents)
+    (doseq [test-agent (rest test-agents)]
+      (is (instance? Thread @test-agent))
+      (is (not= (Thread/currentThread) @test-agent)))))
+
+; Queue limits
+(deftest agent-queue-limit-fail-test
+  (let [test-agent (set-agent-queue-limit! (agent 0) 2)
+        latch (block-agent test-agent)]
+    (send test-agent inc)
+    (is (thrown? java.util.concurrent.RejectedExecutionException
+                 (send test-agent inc)))
+    (.countDown latch)
+    (is (await-queue test-agent))
+    (is (== 1 @test-agent))
+    (is (== 1 (:rejected (agent-metrics test-agent))))))
+
+(deftest agent-queue-limit-drop-test
+  (let [test-agent (set-agent-queue-limit! (agent 0) 2 :drop)
+        latch (block-agent test-agent)]
+    (dotimes [_ 5]
+      (send test-agent inc))
+    (.countDown latch)
+    (is (await-queue test-agent))
+    (is (== 1 @test-agent))
+    (is (== 4 (:rejected (agent-metrics test-agent))))))
+
+(deftest agent-queue-limit-block-test
+  (let [test-agent (set-agent-queue-limit! (agent 0) 1 :block)
+        latch (block-agent test-agent)]
+    (future
+      (Thread/sleep 100)
+      (.countDown latch))
+    ; Blocks until the first action completes
+    (send test-agent inc)
+    (is (await-queue test-agent))
+    (is (== 1 @test-agent))
+    (is (== 0 (:rejected (agent-metrics test-agent))))))
+
+(deftest agent-queue-limit-block-concurrent-test
+  (let [test-agent (set-agent-queue-limit! (agent 0) 2 :block)
+        depth (atom 0)
+        senders (doall (for [_ (range 8)]
+                         (future
+                           (dotimes [_ 200]
+                             (send test-agent (fn [n]
+                                                (swap! depth max (.getQueueCount ^clojure.lang.Agent *agent*))
+                                                (inc n)))))))]
+    (doseq [sender senders] @sender)
+    (is (await-queue test-agent))
+    (is (== 1600 @test-agent))
+    (is (<= @depth 2) "Concurrent senders never exceed the limit")))
+
+(deftest agent-queue-limit-block-failed-test
+  (let [test-agent (set-agent-queue-limit! (agent 0 :error-mode :fail) 1 :block)
+        latch (java.util.concurrent.CountDownLatch. 1)
+        _ (send-off test-agent (fn [_] (.await latch) (throw (Exception. "failed"))))
+        sender (future (send test-agent inc))]
+    (is (= :blocked (deref sender 100 :blocked)))
+    ; The blocked sender is woken when the agent fails
+    (.countDown latch)
+    (is (thrown-with-msg? java.util.concurrent.ExecutionException #"Agent is failed"
+                          (deref sender 1000 :blocked)))
+    (is (== 0 @test-agent))))
+
+(deftest agent-queue-limit-block-error-handler-test
+  ; The error handler runs on the thread of the agent, so its sends to the full queue never block
+  (let [handled (promise)
+        test-agent (set-agent-queue-limit!
+                     (agent 0 :error-mode :continue
+                            :error-handler (fn [a e] (deliver handled true) (send a inc)))
+                     1 :block)]
+    (send test-agent (fn [_] (throw (Exception. "failed"))))
+    (is (deref handled 1000 false))
+    (is (await-queue test-agent))
+    (is (== 0 @test-agent))
+    (is (== 1 (:rejected (agent-metrics test-agent))))))
+
+(deftest agent-queued-time-test
+  (let [test-agent (agent 0)]
+    ; Time held by the transaction is not counted as queued
+    (dosync
+      (send test-agent inc)
+      (Thread/sleep 200))
+    (is (await-queue test-agent))
+    (is (< (:mean-queued-nanos (agent-metrics test-agent)) 100000000))))
+
+(deftest agent-queue-limit-policy-test
+  (is (thrown? IllegalArgumentException
+               (set-agent-queue-limit! (agent 0) 1 :wait)))
+  (is (thrown? IllegalArgumentException
+               (set-agent-queue-limit! (agent 0) 0))))
+
+; Batches
+(deftest agent-batch-test
+  (let [test-agent (set-agent-batch-size! (agent []) 8)
+        latch (block-agent test-agent)]
+    (dotimes [i 50]
+      (if (even? i)
+        (send test-agent conj i)
+        (send-off test-agent conj i)))
+    (.countDown latch)
+    (is (await-queue test-agent))
+    (is (= (range 50) @test-agent))))
+
+(deftest agent-batch-error-test
+  (let [test-agent (set-agent-batch-size! (agent 0 :error-mode :fail) 8)
+        latch (block-agent test-agent)]
+    (send test-agent inc)
+    (send test-agent (fn [_] (throw (Exception.))))
+    (send test-agent inc)
+    (.countDown latch)
+    (Thread/sleep 100)
+    (is (agent-error test-agent))
+    (is (== 1 @test-agent))
+    (is (== 1 (.getQueueCount ^clojure.lang.Agent test-agent)))
+    (restart-agent test-agent 10)
+    (is (await-queue test-agent))
+    (is (== 11 @test-agent))))
+
+(deftest agent-batch-size-test
+  (is (thrown? IllegalArgumentException
+               (set-agent-batch-size! (agent 0) 0))))
+
+; Transactions
+(deftest agent-transaction-dispatch-test
+  (let [test-agents (repeatedly 3 #(agent []))]
+    (dosync
+      (dotimes [i 1000]
+        (send (nth test-agents (mod i 3)) conj i)))
+    (doseq [[n test-agent] (map-indexed vector test-agents)]
+      (is (await-queue test-agent))
+      (is (= (filter #(== n (mod % 3)) (range 1000)) @test-agent)))))
+
+(deftest agent-transaction-dispatch-nested-test
+  (let [outer-agent (agent nil) inner-agent (agent [])]
+    (send outer-agent
+          (fn [_]
+            (dosync
+              (send inner-agent conj 1)
+              (send inner-agent conj 2))
+            ; Sends from a transaction in an action are held until the action completes
+            (Thread/sleep 50)
+            @inner-agent))
+    (is (await-queue outer-agent))
+    (is (await-queue inner-agent))
+    (is (= [] @outer-agent))
+    (is (= [1 2] @inner-agent))))
+
+; Metrics
+(deftest agent-metrics-test
+  (let [test-agent (agent 0)]
+    (dotimes [_ 10]
+      (send test-agent inc))
+    (is (await-queue test-agent))
+    (let [metrics (agent-metrics test-agent)]
+      (is (== 10 (:completed metrics)))
+      (is (== 0 (:queue-depth metrics)))
+      (is (nil? (:queue-limit metrics)))
+      (is (<= 0 (:mean-queued-nanos metrics)))
+      (is (< 0 (:mean-run-nanos metrics))))))
@@ -0,0 +1,131 @@
+; eClojure
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(ns eclojure.atoms
+  (:use clojure.test clojure.eclojure))
+
+;; Runs body in a number of threads at the same time and waits for them
+(defmacro concurrently [threads & body]
+  `(let [latch# (java.util.concurrent.CountDownLatch. 1)
+         workers# (doall (repeatedly ~threads #(future (.await latch#) ~@body)))]
+     (.countDown latch#)
+     (doall (map deref workers#))))
+
+; Contention modes
+(deftest atom-default-mode-test
+  (let [test-atom (atom 0)]
+    (concurrently 8 (dotimes [_ 1000] (swap! test-atom inc)))
+    (is (== 8000 @test-atom))
+    (is (nil? (atom-metrics test-atom)))))
+
+(deftest atom-metrics-mode-test
+  (let [test-atom (set-atom-contention-mode! (atom 0) :metrics)]
+    (concurrently 8 (dotimes [_ 1000] (swap! test-atom + 1)))
+    (let [metrics (atom-metrics test-atom)]
+      (is (== 8000 @test-atom))
+      (is (== 8000 (:swaps metrics)))
+      (is (== 0 (:combined metrics)))
+      (is (== (:failure-rate metrics) (/ (:cas-failures metrics) 8000.0))))))
+
+(deftest atom-combining-mode-test
+  (let [test-atom (set-atom-contention-mode! (atom {}) :combining)
+        watched (atom [])]
+    (add-watch test-atom :count (fn [_ _ old new]
+                                  (swap! watched conj (- (count (:xs new)) (count (:xs old))))))
+    (concurrently 8 (dotimes [i 1000] (swap! test-atom update :xs (fnil conj []) i)))
+    (is (== 8000 (count (:xs @test-atom))))
+    ; Each watch is notified with the values before and after its own update
+    (is (= (repeat 8000 1) @watched))
+    (is (== 8000 (:swaps (atom-metrics test-atom))))))
+
+(deftest atom-combining-validator-test
+  (let [test-atom (set-atom-contention-mode! (atom 0 :validator even?) :combining)
+        failures (atom 0)]
+    (concurrently 8 (dotimes [i 1000]
+                      (try
+                        (swap! test-atom + (if (zero? (mod i 10)) 1 2))
+                        (catch IllegalStateException e
+                          (swap! failures inc)))))
+    (is (== 800 @failures))
+    (is (== (* 8 900 2) @test-atom))))
+
+(def ^:dynamic *swapper* nil)
+
+(deftest atom-combining-bindings-test
+  (let [test-atom (set-atom-contention-mode! (atom []) :combining)]
+    (concurrently 8 (binding [*swapper* (Thread/currentThread)]
+                      (dotimes [_ 1000]
+                        (swap! test-atom (fn [seen thread]
+                                           ; Yielding makes the compare and sets fail so swaps are combined
+                                           (Thread/yield)
+                                           (conj seen (identical? thread *swapper*)))
+                               (Thread/currentThread)))))
+    (is (pos? (:combined (atom-metrics test-atom))))
+    ; Update functions applied by the combining thread see the bindings of the swapping thread
+    (is (== 8000 (count (filter true? @test-atom))))))
+
+(deftest atom-combining-slow-update-test
+  (let [test-atom (set-atom-contention-mode! (atom 0) :combining)
+        ; Slow updates keep the combiner busy long enough for the waiting threads to park
+        swaps (future (concurrently 8 (dotimes [_ 50]
+                                        (swap! test-atom (fn [n] (Thread/sleep 1) (inc n))))))]
+    (is (not= :stalled (deref swaps 10000 :stalled)) "Parked threads are woken")
+    (is (== 400 @test-atom))
+    (is (pos? (:combined (atom-metrics test-atom))))))
+
+(deftest atom-contention-mode-test
+  (is (thrown? IllegalArgumentException
+               (set-atom-contention-mode! (atom 0) :spin)))
+  (is (nil? (atom-metrics (set-atom-contention-mode! (set-atom-contention-mode! (atom 0) :metrics) :default)))))
+
+; Striped atoms
+(deftest striped-atom-counter-test
+  (let [counter (striped-atom 0 + 4)]
+    (concurrently 8 (dotimes [_ 1000] (swap! counter inc)))
+    (is (== 8000 @counter))
+    (swap! counter + 10 20 30 40)
+    (is (== 8100 @counter))))
+
+(deftest striped-atom-map-test
+  (let [stats (striped-atom {} (partial merge-with +))]
+    (concurrently 8 (dotimes [i 1000] (swap! stats update (mod i 4) (fnil inc 0))))
+    (is (= {0 2000 1 2000 2 2000 3 2000} @stats))))
+
+(deftest striped-atom-cache-test
+  (let [merges (atom 0)
+        counter (striped-atom 0 (fn [a b] (swap! merges inc) (+ a b)) 2)]
+    (concurrently 4 (swap! counter inc))
+    (is (== 4 @counter))
+    ; The merged value is cached until the next swap
+    (let [merged @merges]
+      (is (== 4 @counter))
+      (is (== merged @merges))
+      (swap! counter inc)
+      (is (== 5 @counter)))
+    (is (== 7 (reset! counter 7)))
+    (is (== 7 @counter))))
+
+(deftest striped-atom-cache-stress-test
+  ; Slow merges interleave derefs with swaps, a deref must never return a value cached before a swap
+  (let [counter (striped-atom 0 (fn [a b] (Thread/yield) (+ a b)) 4)
+        stale (atom 0)]
+    (concurrently 8 (dotimes [i 2000]
+                      (swap! counter inc)
+                      (when (< @counter (inc i))
+                        (swap! stale inc))))
+    (is (== 0 @stale))
+    (is (== 16000 @counter))))
+
+(deftest striped-atom-unsupported-test
+  (let [counter (striped-atom 0 +)]
+    (is (thrown? UnsupportedOperationException (compare-and-set! counter 0 1)))
+    (is (thrown? UnsupportedOperationException (set-validator! counter pos?)))
+    (is (thrown? UnsupportedOperationException (add-watch counter :key (fn [& _]))))
+    (is (thrown? IllegalArgumentException (striped-atom 0 + 0)))))
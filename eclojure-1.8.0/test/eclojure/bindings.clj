@@ -0,0 +1,85 @@
+; eClojure
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(ns eclojure.bindings
+  (:use clojure.test clojure.eclojure))
+
+(def ^:dynamic *first* :root)
+(def ^:dynamic *second* :root)
+(def ^:dynamic *unbound*)
+
+; Binding frames
+(deftest nested-binding-test
+  (binding [*first* 1]
+    (binding [*second* 2]
+      (binding [*first* 3]
+        (is (= [3 2] [*first* *second*])))
+      (is (= [1 2] [*first* *second*]))
+      (set! *second* 4)
+      (is (= 4 *second*)))
+    (is (= [1 :root] [*first* *second*])))
+  (is (= [:root :root] [*first* *second*])))
+
+(deftest many-vars-binding-test
+  ; Vars created after the frame was pushed get slots beyond its end
+  (let [vars (vec (for [i (range 100)]
+                    (.setDynamic (clojure.lang.Var/create i))))]
+    (binding [*first* 1]
+      (let [bound (count (get-thread-bindings))]
+        (with-bindings (zipmap vars (map - (range 100)))
+          (is (= (map - (range 100)) (map deref vars)))
+          (is (= 1 *first*))
+          (is (= (+ bound 100) (count (get-thread-bindings))))))
+      (is (= (range 100) (map deref vars)))
+      (is (not-any? #(.getThreadBinding ^clojure.lang.Var %) vars)))))
+
+(deftest local-vars-slot-test
+  ; The slots of collected local vars are reused so frames do not keep growing
+  (with-local-vars [x 1] @x)
+  (dotimes [_ 10]
+    (System/gc)
+    (dotimes [_ 1000] (with-local-vars [x 1] @x)))
+  (is (< (.get (doto (.getDeclaredField clojure.lang.Var "nextSlot") (.setAccessible true)) nil) 10000))
+  (with-local-vars [x 1 y 2]
+    (var-set x 3)
+    (is (= [3 2] [@x @y]))))
+
+(deftest unbound-binding-test
+  (is (not (bound? #'*unbound*)))
+  (binding [*unbound* 1]
+    (is (bound? #'*unbound*))
+    (is (thread-bound? #'*unbound*)))
+  (is (not (bound? #'*unbound*))))
+
+(deftest conveyed-binding-test
+  (binding [*first* 1]
+    (is (= 1 @(future *first*)))
+    (is (= 1 ((bound-fn [] *first*))))
+    (is (thrown? IllegalStateException
+                 (try @(future (set! *first* 2))
+                      (catch java.util.concurrent.ExecutionException e
+                        (throw (.getCause e))))))))
+
+(deftest shared-conveyed-frame-test
+  (binding [*first* 1]
+    ; Conveying the same frame repeatedly is a pointer copy
+    (is (identical? (clojure.lang.Var/cloneThreadBindingFrame)
+                    (clojure.lang.Var/cloneThreadBindingFrame)))
+    (binding [*second* 2]
+      (is (not (identical? (clojure.lang.Var/cloneThreadBindingFrame)
+                           (clojure.lang.Var/getThreadBindingFrame)))))
+    ; Bindings established by a conveyed task do not leak into the next task
+    (is (= [[1 :root 3] [1 :root 3]]
+           (pmap (fn [_]
+                   (let [before [*first* *second*]]
+                     (binding [*second* 3]
+                       (conj before *second*))))
+                 (range 2))))
+    (is (= (range 1 101) (pmap #(+ % *first*) (range 100))))))
@@ -0,0 +1,99 @@
+; eClojure
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(ns eclojure.compile-cache
+  (:use clojure.test clojure.eclojure eclojure.eclojure-test-helper)
+  (:require [clojure.java.io :as io]))
+
+;; Writes a namespace using a macro from a dependency returning version, the
+;; modification time is set from version as it only has a resolution of seconds
+(defn write-sources [dir lib version & files]
+  (doseq [[file source] (select-keys
+                          {"dep.clj" (str "(ns " lib ".dep)\n(defmacro tag [x] [" version " x])\n")
+                           "core.clj" (str "(ns " lib ".core (:require " lib ".dep))\n"
+                                           "(defn tagged [x] (" lib ".dep/tag x))\n"
+                                           "(def started (if *compile-files* :skipped :started))\n")}
+                          (or files ["dep.clj" "core.clj"]))]
+    (let [file (io/file dir (name lib) file)]
+      (io/make-parents file)
+      (spit file source)
+      (.setLastModified file (* version 1000000)))))
+
+(defn class-loader [& dirs]
+  (let [loader (clojure.lang.DynamicClassLoader.)]
+    (doseq [dir dirs]
+      (.addURL loader (.toURL (.toURI dir))))
+    loader))
+
+;; Reloads the namespace through the cache, returns the result of calling its
+;; function, whether the function was defined from the cache and whether the
+;; namespace saw *compile-files* when it was loaded
+(defn load-cached [lib cache & dirs]
+  (with-bindings {clojure.lang.Compiler/LOADER (apply class-loader dirs)
+                  clojure.lang.CompileCache/CACHE_PATH (str cache)}
+    (require (symbol (str lib ".core")) :reload-all)
+    (let [tagged @(resolve (symbol (str lib ".core") "tagged"))]
+      [(tagged 1)
+       (.endsWith (.getName (class (.getClassLoader (class tagged)))) "CachedClassLoader")
+       @(resolve (symbol (str lib ".core") "started"))])))
+
+;; Compiles the dependency ahead of time into classes, setting the modification
+;; time of the classes from version
+(defn compile-dep [lib version classes]
+  (let [source (temp-dir)]
+    (try
+      (write-sources source lib version "dep.clj")
+      (with-bindings {clojure.lang.Compiler/LOADER (class-loader source classes)}
+        (binding [*compile-path* (str classes)]
+          (compile (symbol (str lib ".dep")))))
+      (doseq [file (file-seq classes)]
+        (.setLastModified ^java.io.File file (* version 1000000)))
+      (finally
+        (delete-dir source)))))
+
+(defn count-cached [cache]
+  (count (filter #(.endsWith (.getName ^java.io.File %) "__init.class") (file-seq cache))))
+
+(deftest compile-cache-test
+  ; Every namespace loaded is a dependency of those compiled later, so all are kept on the classpath
+  (let [source (temp-dir) classes (temp-dir) cache (temp-dir)]
+    (try
+      (write-sources source 'cached 1)
+      (testing "Compiled into the cache on the first load"
+        (is (= [[1 1] false :started] (load-cached 'cached cache source classes)))
+        (is (= 2 (count-cached cache))))
+      (testing "Loaded from the cache while unchanged"
+        (is (= [[1 1] true :started] (load-cached 'cached cache source classes)))
+        (is (= 2 (count-cached cache))))
+      (testing "Compiled again when a dependency changes"
+        (write-sources source 'cached 2)
+        (is (= [[2 1] false :started] (load-cached 'cached cache source classes)))
+        (is (= [[2 1] true :started] (load-cached 'cached cache source classes)))
+        (is (= 2 (count-cached cache)) "Versions compiled from the previous source are deleted"))
+      (testing "Compiled separately when *assert* changes"
+        (is (= [[2 1] false :started] (binding [*assert* false] (load-cached 'cached cache source classes))))
+        (is (= [[2 1] true :started] (binding [*assert* false] (load-cached 'cached cache source classes))))
+        (is (= [[2 1] true :started] (load-cached 'cached cache source classes)))
+        (is (= 4 (count-cached cache))))
+      (write-sources source 'aot 1 "core.clj")
+      (compile-dep 'aot 1 classes)
+      (testing "Loaded from the cache while a compiled dependency is unchanged"
+        (is (= [[1 1] false :started] (load-cached 'aot cache source classes)))
+        (is (= [[1 1] true :started] (load-cached 'aot cache source classes))))
+      (testing "Compiled again when a compiled dependency changes"
+        (compile-dep 'aot 2 classes)
+        (is (= [[2 1] false :started] (load-cached 'aot cache source classes)))
+        (is (= [[2 1] true :started] (load-cached 'aot cache source classes))))
+      (finally
+        (doseq [lib '[cached.core cached.dep aot.core aot.dep]]
+          (remove-ns lib))
+        (delete-dir source)
+        (delete-dir classes)
+        (delete-dir cache)))))
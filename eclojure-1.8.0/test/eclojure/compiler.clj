@@ -0,0 +1,313 @@
+; eClojure
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(ns eclojure.compiler
+  (:use clojure.test clojure.eclojure eclojure.eclojure-test-helper))
+
+;; Evaluates form with the given compiler options enabled, direct linking is
+;; disabled as it takes precedence and the tests may be run with it enabled
+(defn eval-with [options form]
+  (binding [*compiler-options* (merge *compiler-options* {:direct-linking false} options)]
+    (eval form)))
+
+(defn root-fn [x] (inc x))
+(def root-value 10)
+(declare later-fn)
+
+; Constant roots
+(deftest constant-roots-redefinition-test
+  (let [f (eval-with {:constant-roots true}
+                     '(fn [x] (+ (eclojure.compiler/root-fn x) eclojure.compiler/root-value)))]
+    (is (== 12 (f 1)))
+    (with-redefs [root-fn (fn [x] (* 3 x))]
+      (is (== 13 (f 1))))
+    (alter-var-root #'root-value (constantly 20))
+    (is (== 22 (f 1)))
+    (alter-var-root #'root-value (constantly 10))))
+
+(deftest constant-roots-unbound-test
+  (let [f (eval-with {:constant-roots true}
+                     '(fn [x] (eclojure.compiler/later-fn x)))]
+    (is (thrown? IllegalStateException (f 1)))
+    (intern 'eclojure.compiler 'later-fn (fn [x] [:later x]))
+    (is (= [:later 1] (f 1)))))
+
+(deftest constant-roots-frames-test
+  ; Branches merging different types require the computed stack map frames
+  (let [f (eval-with {:constant-roots true}
+                     '(fn [x]
+                        (let [v (if (string? x) (StringBuilder. ^String x) (java.util.ArrayList.))]
+                          (try
+                            (str (eclojure.compiler/root-fn (count v)))
+                            (catch ArithmeticException e
+                              eclojure.compiler/root-value)))))]
+    (is (= "4" (f "abc")))
+    (is (= "1" (f nil)))))
+
+;; Calls the getCommonSuperClass of the class writer used for computing frames
+(defn common-super-class [type1 type2]
+  (let [writer (doto (.getDeclaredMethod clojure.lang.Compiler "classWriter" (into-array Class [String String]))
+                 (.setAccessible true))
+        common (doto (.getDeclaredMethod clojure.asm.ClassWriter "getCommonSuperClass" (into-array Class [String String]))
+                 (.setAccessible true))]
+    (binding [*compiler-options* (assoc *compiler-options* :constant-roots true)]
+      (try
+        (.invoke common (.invoke writer nil (object-array ["frames/Generated" "clojure/lang/AFunction"]))
+                 (object-array [type1 type2]))
+        (catch java.lang.reflect.InvocationTargetException e
+          (throw (.getCause e)))))))
+
+(deftype FrameA [])
+(deftype FrameB [])
+
+(deftest constant-roots-common-super-class-test
+  (is (= "java/lang/Number" (common-super-class "java/lang/Long" "java/lang/Double")))
+  (is (= "clojure/lang/AFunction" (common-super-class "frames/Generated" "clojure/lang/AFunction")))
+  (with-bindings {clojure.lang.Compiler/LOADER (clojure.lang.DynamicClassLoader.)}
+    (is (= "java/lang/Object" (common-super-class "eclojure/compiler/FrameA" "eclojure/compiler/FrameB"))))
+  (is (thrown-with-msg? RuntimeException #"frames\.Missing"
+                        (common-super-class "frames/Missing" "java/lang/Long"))))
+
+(defprotocol Describe (describe [x] [x y]))
+(defrecord Described [a] Describe (describe [x] [:record a]) (describe [x y] [:record a y]))
+(extend-protocol Describe String (describe ([x] [:string x]) ([x y] [:string x y])))
+
+; Invokedynamic
+(deftest invokedynamic-var-test
+  (let [f (eval-with {:invokedynamic true}
+                     '(fn [x] [(eclojure.compiler/root-fn x) (max 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16 17 18 19 20 21 x)]))]
+    (is (= [2 21] (f 1)))
+    (with-redefs [root-fn (fn [x] (* 3 x))]
+      (is (= [3 21] (f 1))))
+    (is (= [2 21] (f 1)))))
+
+(deftest invokedynamic-protocol-test
+  (let [f (eval-with {:invokedynamic true}
+                     '(fn [x] [(eclojure.compiler/describe x) (eclojure.compiler/describe x 1)]))]
+    (is (= [[:string "s"] [:string "s" 1]] (f "s")))
+    (is (= [[:record 1] [:record 1 1]] (f (->Described 1))))
+    (is (thrown? IllegalArgumentException (f 1)))
+    ; Extending the protocol invalidates the cached implementations
+    (extend-protocol Describe Long (describe ([x] [:long x]) ([x y] [:long x y])))
+    (is (= [[:long 1] [:long 1 1]] (f 1)))
+    (extend-protocol Describe Long (describe ([x] [:long2 x]) ([x y] [:long2 x y])))
+    (is (= [[:long2 1] [:long2 1 1]] (f 1)))
+    ; Sites seeing many classes fall back to the protocol function
+    (extend-protocol Describe Object (describe ([x] [:object]) ([x y] [:object y])))
+    (is (= (repeat 10 [[:object] [:object 1]])
+           (map f [1.0 :k 'sym [1] {} #{} 1N 2M \c (int 3)])))
+    (is (= [[:long2 1] [:long2 1 1]] (f 1)))
+    (is (= [[:string "s"] [:string "s" 1]] (f "s")))))
+
+; Lazy roots
+(defn raw-root [v]
+  (let [field (.getDeclaredField clojure.lang.Var "root")]
+    (.setAccessible field true)
+    (.get field v)))
+
+(deftest lazy-roots-test
+  (let [source (temp-dir)
+        classes (temp-dir)
+        file (clojure.java.io/file source "lazy" "roots.clj")
+        loader #(doto (clojure.lang.DynamicClassLoader.)
+                  (.addURL (.toURL (.toURI ^java.io.File %))))]
+    (try
+      (clojure.java.io/make-parents file)
+      (spit file (str "(ns lazy.roots)\n"
+                      "(defn twice [x] (* 2 x))\n"
+                      "(defn prim ^long [^long x] (inc x))\n"
+                      "(defn unused [] :unused)\n"
+                      "(def value (twice 21))\n"
+                      "(defn uses [] (prim (twice 1)))\n"))
+      (with-bindings {clojure.lang.Compiler/LOADER (loader source)}
+        (binding [*compile-path* (str classes)
+                  *compiler-options* (merge *compiler-options* {:lazy-roots true})]
+          (compile 'lazy.roots)))
+      (remove-ns 'lazy.roots)
+      (dosync (alter @#'clojure.core/*loaded-libs* disj 'lazy.roots))
+      (with-bindings {clojure.lang.Compiler/LOADER (loader classes)}
+        (require 'lazy.roots))
+      (is (instance? clojure.lang.LazyRoot (raw-root (resolve 'lazy.roots/unused))))
+      (is (not (instance? clojure.lang.LazyRoot (raw-root (resolve 'lazy.roots/prim)))))
+      (is (= 42 @(resolve 'lazy.roots/value)))
+      (is (= 3 (@(resolve 'lazy.roots/uses))))
+      ; Code not compiled with the option reads the LazyRoot, which realizes the root when invoked
+      (is (= :unused (@(resolve 'lazy.roots/unused))))
+      (is (not (instance? clojure.lang.LazyRoot (raw-root (resolve 'lazy.roots/unused)))))
+      (is (fn? (raw-root (resolve 'lazy.roots/unused))))
+      (finally
+        (remove-ns 'lazy.roots)
+        (dosync (alter @#'clojure.core/*loaded-libs* disj 'lazy.roots))
+        (delete-dir source)
+        (delete-dir classes)))))
+
+; Primitive interfaces
+(defn prim-args ^double [^long a ^long b ^long c ^long d ^double e x]
+  (+ a b c d e (count x)))
+
+(deftest prim-interfaces-test
+  (is (instance? (resolve 'eclojure.compiler$IFn$LLLLDOD) prim-args))
+  (is (thrown? ClassNotFoundException (resolve 'clojure.lang.IFn$LLLLDOD)))
+  (is (= 16.5 (prim-args 1 2 3 4 5.5 [1])))
+  (is (= 16.5 (eval-with {} '(eclojure.compiler/prim-args 1 2 3 4 5.5 [1]))))
+  (is (= 16.5 (eval-with {} '(let [f eclojure.compiler/prim-args] (f 1 2 3 4 5.5 [1])))))
+  (is (= 55 (eval-with {} (let [args (map #(symbol (str "x" %)) (range 10))]
+                             `((fn [~@(map #(vary-meta % assoc :tag 'long) args)] (+ ~@args))
+                               ~@(range 1 11)))))))
+
+(deftest prim-interfaces-aot-test
+  (let [source (temp-dir)
+        classes (temp-dir)
+        file (clojure.java.io/file source "prim" "interfaces.clj")
+        loader #(doto (clojure.lang.DynamicClassLoader.)
+                  (.addURL (.toURL (.toURI ^java.io.File %))))]
+    (try
+      (clojure.java.io/make-parents file)
+      (spit file (str "(ns prim.interfaces)\n"
+                      "(defn sum ^long [^long a ^long b ^long c ^long d ^long e] (+ a b c d e))\n"
+                      "(defn uses [] (sum 1 2 3 4 5))\n"))
+      (with-bindings {clojure.lang.Compiler/LOADER (loader source)}
+        (binding [*compile-path* (str classes)
+                  *compiler-options* (merge *compiler-options* {:direct-linking false})]
+          (compile 'prim.interfaces)))
+      (is (.exists (clojure.java.io/file classes "prim" "interfaces$IFn$LLLLLL.class")))
+      (is (not (.exists (clojure.java.io/file classes "clojure"))))
+      (remove-ns 'prim.interfaces)
+      (dosync (alter @#'clojure.core/*loaded-libs* disj 'prim.interfaces))
+      ; The AOT compiled classes resolve the interface from the classpath and not from memory
+      (let [classpath (java.net.URLClassLoader. (into-array [(.toURL (.toURI ^java.io.File classes))])
+                                                (.getClassLoader clojure.lang.RT))
+            sum (.newInstance (Class/forName "prim.interfaces$sum" true classpath))]
+        (is (= 15 (.invokePrim sum 1 2 3 4 5)))
+        (is (= (.getClassLoader (class sum))
+               (.getClassLoader (Class/forName "prim.interfaces$IFn$LLLLLL" false classpath)))))
+      (with-bindings {clojure.lang.Compiler/LOADER (loader classes)}
+        (require 'prim.interfaces))
+      (is (instance? (resolve 'prim.interfaces$IFn$LLLLLL) @(resolve 'prim.interfaces/sum)))
+      (is (= 15 (@(resolve 'prim.interfaces/uses))))
+      (finally
+        (remove-ns 'prim.interfaces)
+        (dosync (alter @#'clojure.core/*loaded-libs* disj 'prim.interfaces))
+        (delete-dir source)
+        (delete-dir classes)))))
+
+; Singletons
+(defn singleton-fns [form]
+  (eval-with {:singleton-fns true} form))
+
+(deftest singleton-fns-test
+  (let [make-inc (singleton-fns '(fn [] (fn [x] (inc x))))
+        make-add (singleton-fns '(fn [n] (fn [x] (+ x n))))
+        make-meta (singleton-fns '(fn [] ^{:doc "meta"} (fn [x] (dec x))))]
+    (is (identical? (make-inc) (make-inc)))
+    (is (= [2 3] (map (make-inc) [1 2])))
+    (is (not (identical? (make-add 1) (make-add 1))))
+    (is (= 3 ((make-add 1) 2)))
+    (is (= "meta" (:doc (meta (make-meta)))))
+    (is (= 1 ((make-meta) 2)))
+    (is (not (identical? (singleton-fns '(fn [] 1)) (singleton-fns '(fn [] 1)))))))
+
+(deftest singleton-fns-disabled-test
+  ; Each evaluation of a fn expression creates a new fn unless the option is set
+  (let [make-inc (eval-with {} '(fn [] (fn [x] (inc x))))]
+    (is (not (identical? (make-inc) (make-inc))))))
+
+; Keyword lookups
+(defrecord Point [x y ^long z])
+
+(defn point-x [^Point p] (:x p))
+(defn point-z [^Point p] (:z p))
+(defn point-w [^Point p] (:w p))
+(defn lookup-a [m] (:a m))
+(defn lookup-site? [^java.lang.reflect.Field f] (.startsWith (.getName f) "__site__"))
+
+(deftest keyword-record-field-test
+  (is (= 1 (point-x (->Point 1 2 3))))
+  (is (= 3 (point-z (->Point 1 2 3))))
+  (is (nil? (point-x nil)))
+  (is (= 4 (point-x {:x 4})) "Targets that are not of the hinted record are looked up")
+  (is (= 5 (point-w (assoc (->Point 1 2 3) :w 5))))
+  (is (not-any? lookup-site? (.getDeclaredFields (class point-x))) "Fields are read directly")
+  (is (some lookup-site? (.getDeclaredFields (class point-w)))))
+
+(deftest keyword-polymorphic-site-test
+  (let [targets [{:a 1} {:b 2 :a 3} (->Point 1 2 3) (assoc (->Point 1 2 3) :a 4) (hash-map :a 5) nil
+                 (java.util.HashMap. {:a 6}) {:a 7 :c 8}]]
+    (dotimes [_ 3]
+      (is (= [1 3 nil 4 5 nil 6 7] (map lookup-a targets))))))
+
+(deftest keyword-destructuring-test
+  (let [f (eval-with {:keyword-destructuring true}
+                     '(fn [m] (let [{:keys [a b] c :c d :d :or {d 4}} m] [a b c d])))]
+    (is (= [1 2 3 4] (f {:b 2 :a 1 :c 3})))
+    (is (some #(.startsWith (.getName ^java.lang.reflect.Field %) "__site__")
+              (.getDeclaredFields (class f)))))
+  (let [f (eval '(fn [m] (let [{:keys [a b]} m] [a b])))]
+    (is (= [1 2] (f {:b 2 :a 1})))
+    (is (not-any? #(.startsWith (.getName ^java.lang.reflect.Field %) "__site__")
+                  (.getDeclaredFields (class f)))))
+  (let [^Point {:keys [x y]} (->Point 1 2 3)]
+    (is (= [1 2] [x y])))
+  (let [^Point {:keys [x y]} {:x 4 :y 5}]
+    (is (= [4 5] [x y]))))
+
+; Method splitting
+;; A fn with a case of n branches, each a few hundred bytes of bytecode
+(defn huge-fn-form [n]
+  (list 'fn '[^long x y]
+        (concat (list 'case 'x)
+                (mapcat (fn [i] [i (list 'let ['a (list 'str 'y i)]
+                                         (list* 'vector 'a (list '+ 'x i) (list 'keyword 'a)
+                                                (map #(list 'str 'a % 'y) (range 10))))])
+                        (range n))
+                [(list 'loop '[i 0 acc []]
+                       (list 'if '(< i 3) (list 'recur '(inc i) (list 'conj 'acc (list 'str 'y 'i))) 'acc))])))
+
+;; A fn with a let body of n statements
+(defn huge-body-form [n]
+  (list 'fn '[x]
+        (concat (list 'let '[acc (java.util.ArrayList.) y (str x)])
+                (map (fn [i] (list '.add 'acc (list 'str 'y i 'x))) (range n))
+                ['(vec acc)])))
+
+(defn split-methods [f]
+  (filter #(.startsWith (.getName ^java.lang.reflect.Method %) "__split") (.getDeclaredMethods (class f))))
+
+;; Evaluates form with the given compiler options, returning the fn and what was printed to *err*
+(defn eval-with-err [options form]
+  (let [err (java.io.StringWriter.)]
+    [(binding [*err* (java.io.PrintWriter. err)] (eval-with options form)) (str err)]))
+
+(deftest split-methods-test
+  (let [[f f-err] (eval-with-err {:warn-on-huge-methods true} (huge-fn-form 80))
+        [g g-err] (eval-with-err {:warn-on-huge-methods true} (huge-body-form 600))]
+    (is (seq (split-methods f)))
+    (is (= ["a7" 14 :a7 "a70a"] (take 4 (f 7 "a"))))
+    (is (= "b799b" (peek (f 79 "b"))))
+    (is (= ["c0" "c1" "c2"] (f 80 "c")))
+    (is (seq (split-methods g)))
+    (is (= (map #(str 1 % 1) (range 600)) (g 1)))
+    (is (= "" f-err g-err) "The split methods are small enough to be JIT compiled")))
+
+(deftest split-methods-disabled-test
+  (let [[f err] (eval-with-err {:split-methods false :warn-on-huge-methods true} (huge-fn-form 80))
+        [g g-err] (eval-with-err {:split-methods false} (huge-fn-form 80))]
+    (is (empty? (split-methods f)))
+    (is (= ["a7" 14 :a7 "a70a"] (take 4 (f 7 "a"))))
+    (is (.contains ^String err "Method size warning"))
+    (is (= "" g-err) "Warnings are disabled by default")))
+
+(deftest huge-record-methods-test
+  (let [fields (map #(symbol (str "f" %)) (range 60))
+        [r err] (eval-with-err {:split-methods false :warn-on-huge-methods true}
+                               `(do (defrecord ~'HugeRecord [~@fields])
+                                    (~'->HugeRecord ~@(range 60))))]
+    (is (= 59 (:f59 (assoc r :f0 1))))
+    (is (= "" err) "The methods generated by defrecord are not warned about")))
@@ -11,6 +11,19 @@
 (ns eclojure.eclojure-test-helper
   (:use clojure.test clojure.eclojure))
 
+;; Directories for tests writing sources or compiled classes to disk
+(defn temp-dir
+  "Creates a new empty directory in the temporary directory"
+  []
+  (.toFile (java.nio.file.Files/createTempDirectory
+             "eclojure" (make-array java.nio.file.attribute.FileAttribute 0))))
+
+(defn delete-dir
+  "Deletes a directory and everything in it"
+  [dir]
+  (doseq [file (reverse (file-seq dir))]
+    (.delete ^java.io.File file)))
+
 ;; Small fixture that just exposes a ref
 (def eclojure-test-ref (ref 0))
 (defn test-ref-fixture
@@ -126,6 +126,47 @@
     (dismiss :test @dismiss-key :all)
     (is (== @event-var 1))))
 
+(deftest listen-once-mixed
+  (let [counts (atom {})
+        count-fn (fn [k] (swap! counts update k (fnil inc 0)))
+        once-key (listen-with-params :test true true count-fn :once-first)
+        keep-key (listen-with-params :test true false count-fn :keep)
+        last-key (listen-with-params :test true true count-fn :once-last)]
+    (notify :test)
+    (notify :test)
+    (dismiss :test keep-key :all)
+    (is (= {:once-first 1 :keep 2 :once-last 1} @counts))))
+
+(deftest listen-modified-while-running
+  (let [counts (atom {})
+        count-fn (fn [k] (swap! counts update k (fnil inc 0)))
+        later-key (promise)
+        added-keys (atom [])
+        first-key (listen :test (fn []
+                                  (count-fn :first)
+                                  (dismiss :test @later-key :all)
+                                  (swap! added-keys conj (listen :test count-fn :added))))
+        once-key (listen-with-params :test true true (fn []
+                                                       (count-fn :once)
+                                                       (notify :test)))
+        keep-key (listen :test count-fn :keep)]
+    (deliver later-key (listen :test count-fn :later))
+    (notify :test)
+    (dismiss :test first-key :all)
+    (dismiss :test keep-key :all)
+    (doseq [added-key @added-keys]
+      (dismiss :test added-key :all))
+    ; The nested notify runs the events present when it started except the removed ones
+    (is (= {:first 2 :once 1 :keep 2 :added 1} @counts))
+    (is (not (has-listeners? :test)))))
+
+(deftest listen-args
+  (with-local-vars [event-var nil]
+    (let [dismiss-key (listen :test #(var-set event-var [%1 %2 %3 %4 %5]) 1 2 3 4 5)]
+      (notify :test)
+      (dismiss :test dismiss-key :all)
+      (is (= [1 2 3 4 5] @event-var)))))
+
 (deftest listen-contex
   (let [dismiss-key (listen :test #(is (== 5 (context))))]
     (notify :test 5)
@@ -136,6 +177,69 @@
       (future (notify :test 7))
       (dismiss :test dismiss-key :all)))
 
+;; Wildcard events
+(deftest listen-wildcard
+  (let [notified (atom [])
+        dismiss-key (listen :order/* #(swap! notified conj (context)))]
+    (notify :order/created 1)
+    (notify :order.payment/paid 2)
+    (notify :orders/created 3)
+    (notify :created 4)
+    (dismiss :order/* dismiss-key :all)
+    (notify :order/created 5)
+    (is (= [1 2] @notified))))
+
+(deftest listen-wildcard-all
+  (let [notified (atom [])
+        exact-key (listen :order/created #(swap! notified conj :exact))
+        all-key (listen :* #(swap! notified conj :all))]
+    (notify :order/created)
+    (notify :created)
+    (dismiss :order/created exact-key :all)
+    (dismiss :* all-key :all)
+    (is (= [:exact :all :all] @notified))))
+
+(deftest listen-wildcard-many-keys
+  (let [notified (atom 0)
+        dismiss-key (listen :order/* #(swap! notified inc))]
+    ; More keys than routes are cached, so the cache is cleared and routes are computed again
+    (dotimes [n 3000]
+      (notify (keyword "order" (str "created-" n))))
+    (is (not-any? #(has-listeners? (keyword "user" (str "created-" %))) (range 3000)))
+    (notify :order/created-0)
+    (dismiss :order/* dismiss-key :all)
+    (is (== 3001 @notified))))
+
+(deftest has-listeners-test
+  (is (not (has-listeners? :order/created)))
+  (let [dismiss-key (listen :order/* #(identity 0))]
+    (is (has-listeners? :order/created))
+    (is (not (has-listeners? :user/created)))
+    (dismiss :order/* dismiss-key :all)
+    (is (not (has-listeners? :order/created)))))
+
+(deftest stm-listen-wildcard
+  (let [event-ref (ref 0)]
+    (dosync
+      (is (not (stm-has-listeners? :order/created)))
+      (stm-listen :order/* #(alter event-ref inc))
+      (is (stm-has-listeners? :order/created))
+      (stm-notify :order/created)
+      (stm-notify :order.payment/paid)
+      (stm-notify :user/created))
+    (is (== @event-ref 2))))
+
+(deftest stm-listen-wildcard-lifecycle
+  ; The keys run when the transaction commits or aborts are never matched by wildcards
+  (let [event-ref (ref 0)
+        notified (atom 0)]
+    (dosync
+      (stm-listen :* #(swap! notified inc))
+      (is (not (stm-has-listeners? :on-commit)))
+      (alter event-ref inc)
+      (stm-notify :user/event))
+    (is (== @notified 1))))
+
 ; Alter-Run and Commute-Run
 (deftest alter-method-execute
   (let [array-ref (ref (java.util.ArrayList. [1 2 3 4 5]))]
@@ -151,8 +255,8 @@
 
 (deftest alter-run-method-execute
   (let [array-ref (ref (java.util.ArrayList. [1 2 3 4 5]))]
-    (dosync
-      (alter-run array-ref .add 6))
+    (is (true? (dosync
+                 (alter-run array-ref .add 6))))
     (is (instance? java.util.ArrayList @array-ref))
     (is (== 6 (.size @array-ref)))))
 
@@ -183,6 +287,90 @@
       (deref java-ref-ref))
     (is (nil? @java-ref-ref))))
 
+(deftest java-ref-borrow-test
+  (let [java-ref-ref (java-ref 10)]
+    (dosync
+      (is (== 10 (borrow java-ref-ref))))
+    (is (== 10 (borrow java-ref-ref)))
+    (is (== 10 @java-ref-ref))))
+
+(deftest java-ref-borrow-not-retry-test
+  (let [java-ref-ref (java-ref (java.util.ArrayList. [1 2 3]))]
+    (is (assert-not-retry
+          (dosync
+            (.size ^java.util.List (borrow java-ref-ref))
+            ; A concurrent borrow does not conflict with the lease
+            @(future (dosync (borrow java-ref-ref))))))))
+
+(deftest java-ref-borrow-retry-test
+  (let [java-ref-ref (java-ref 10)]
+    (with-local-vars [attempts 0]
+      (dosync
+        (var-set attempts (inc @attempts))
+        ; Another transaction replaces the value after the read point
+        (when (== @attempts 1)
+          @(future (dosync (ref-set java-ref-ref (inc @java-ref-ref)))))
+        (borrow java-ref-ref))
+      (is (== @attempts 2))
+      (is (== 11 @java-ref-ref)))))
+
+(deftest java-ref-borrow-blocks-take-test
+  (let [java-ref-ref (java-ref (java.util.ArrayList. [1 2 3]))
+        borrowed (promise)
+        done (promise)
+        borrower (future (dosync (let [^java.util.List l (borrow java-ref-ref)]
+                                   (deliver borrowed true)
+                                   @done
+                                   (.size l))))]
+    @borrowed
+    (let [taker (future (dosync (let [^java.util.List l @java-ref-ref]
+                                  (.add l 4)
+                                  (ref-set java-ref-ref l))))]
+      (is (= :waiting (deref taker 300 :waiting)) "The value is not taken while borrowed")
+      (deliver done true)
+      (is (== 3 @borrower))
+      @taker
+      (is (== 4 (.size ^java.util.List @java-ref-ref))))))
+
+(deftest java-ref-borrow-writer-preference-test
+  (let [java-ref-ref (java-ref (java.util.ArrayList. [1 2 3]))
+        running (atom true)
+        ; Overlapping borrowers so the object is always borrowed by some transaction
+        borrowers (doall (for [i (range 4)]
+                           (future
+                             (Thread/sleep (* i 5))
+                             (while @running
+                               (dosync (.size ^java.util.List (borrow java-ref-ref))
+                                       (Thread/sleep 20))))))]
+    (Thread/sleep 50)
+    (try
+      (let [taker (future (dosync (let [^java.util.List l @java-ref-ref]
+                                    (.add l 4)
+                                    (ref-set java-ref-ref l))))]
+        (is (not= :starved (deref taker 5000 :starved)) "The writer is not starved by the borrowers")
+        (is (== 4 (.size ^java.util.List (borrow java-ref-ref)))))
+      (finally
+        (reset! running false)
+        (doseq [b borrowers] @b)))
+    ; The preference is removed once the writer has taken the object
+    (is (== 4 (deref (future (dosync (.size ^java.util.List (borrow java-ref-ref)))) 1000 :blocked)))))
+
+(deftest java-ref-borrow-waits-for-owner-test
+  (let [java-ref-ref (java-ref (java.util.ArrayList. [1 2 3]))
+        taken (promise)
+        done (promise)
+        owner (future (dosync (let [^java.util.List l @java-ref-ref]
+                                (deliver taken true)
+                                @done
+                                (.add l 4)
+                                (ref-set java-ref-ref l))))]
+    @taken
+    (let [borrower (future (dosync (.size ^java.util.List (borrow java-ref-ref))))]
+      (is (= :waiting (deref borrower 300 :waiting)) "The value is not borrowed while owned")
+      (deliver done true)
+      @owner
+      (is (== 4 @borrower)))))
+
 (deftest java-ref-set-min-history-test
   (is (thrown? java.lang.UnsupportedOperationException
                (.setMinHistory (java-ref 10) 5))))
@@ -196,6 +384,83 @@
     (ensure (java-ref 10))
     (is true)))
 
+(deftest undo-java-ref-commit-test
+  (let [undo-ref (undo-java-ref (java.util.HashMap. {:a 1}))
+        value @undo-ref]
+    (dosync
+      (let [^java.util.Map m @undo-ref]
+        (.put m :b 2)
+        (.remove m :a)))
+    ; The value is mutated in place rather than copied
+    (is (identical? value @undo-ref))
+    (is (= {:b 2} (into {} @undo-ref)))))
+
+(deftest undo-java-ref-abort-test
+  (let [undo-map (undo-java-ref (java.util.HashMap. {:a 1 :b 2}))
+        undo-list (undo-java-ref (java.util.ArrayList. [1 2 3]))]
+    (dosync
+      (let [^java.util.Map m @undo-map ^java.util.List l @undo-list]
+        (.put m :a 10)
+        (.put m :c 3)
+        (.remove m :b)
+        (.add l 4)
+        (.set l 0 10)
+        (.remove l 1)
+        (.add l 0 0)
+        (terminate)))
+    (is (= {:a 1 :b 2} (into {} @undo-map)))
+    (is (= [1 2 3] (vec @undo-list)))))
+
+(deftest undo-java-ref-retry-test
+  (let [undo-list (undo-java-ref (java.util.ArrayList. [1 2 3]))]
+    (with-local-vars [attempts 0]
+      (dosync
+        (var-set attempts (inc @attempts))
+        (.add ^java.util.List @undo-list @attempts)
+        (when (== @attempts 1)
+          (alter eclojure-alter-ref inc)))
+      (is (== @attempts 2))
+      (is (= [1 2 3 2] (vec @undo-list))))))
+
+(deftest undo-java-ref-error-test
+  (let [undo-list (undo-java-ref (java.util.ArrayList. [1 2 3]))]
+    (is (thrown? AssertionError
+                 (dosync
+                   (.add ^java.util.List @undo-list 4)
+                   (throw (AssertionError. "error in transaction")))))
+    (is (= [1 2 3] (vec @undo-list)))
+    ; The ref is usable by later transactions without waiting for the failed one
+    (is (assert-not-retry
+          (.add ^java.util.List @undo-list 5)))
+    (is (= [1 2 3 5] (vec @undo-list)))))
+
+(deftest undo-java-ref-after-commit-error-test
+  (let [undo-map (undo-java-ref (java.util.HashMap. {:a 1}))]
+    ; The listener runs before the undo log would have been released by its own listener
+    (is (thrown-with-msg? RuntimeException #"boom"
+                          (dosync
+                            (after-commit (throw (RuntimeException. "boom")))
+                            (.put ^java.util.Map @undo-map :b 2))))
+    (is (assert-not-retry
+          (.put ^java.util.Map @undo-map :c 3)))
+    (is (= {:a 1 :b 2 :c 3} (into {} @undo-map)))))
+
+(deftest undo-java-ref-alter-run-test
+  (let [undo-list (undo-java-ref (java.util.ArrayList. [1 2 3]))]
+    (dosync
+      (alter-run undo-list .add 4))
+    (is (instance? java.util.ArrayList @undo-list))
+    (is (= [1 2 3 4] (vec @undo-list)))))
+
+(deftest undo-java-ref-unsupported-test
+  (is (thrown? java.lang.IllegalArgumentException (undo-java-ref 10)))
+  (is (thrown? java.lang.UnsupportedOperationException
+               (dosync
+                 (commute (undo-java-ref (java.util.ArrayList.)) identity))))
+  (is (thrown? java.lang.UnsupportedOperationException
+               (dosync
+                 (.add (.subList ^java.util.List @(undo-java-ref (java.util.ArrayList. [1])) 0 1) 2)))))
+
 (deftest alter-method-execute-java-ref
   (let [array-ref (java-ref (java.util.ArrayList. [1 2 3 4 5]))]
     (dosync
@@ -292,3 +557,39 @@
     (on-commit
       (is (not (empty? (context))))
       (evil-ref-updating-global-func)))))
+
+(declare declared-test-ref)
+(defn lock-declared-test-ref []
+  (let [locked (atom nil)]
+    (dosync
+      (lock-refs alter declared-test-ref)
+      (on-commit (reset! locked (context))))
+    @locked))
+(def declared-test-ref (ref 0))
+(deftest lock-refs-declared-var-test
+  ; The var was unbound when lock-refs expanded so it must be checked at runtime
+  (is (= #{declared-test-ref} (lock-declared-test-ref)))
+  (with-redefs [declared-test-ref [(ref 1) (ref 2)]]
+    (is (= (set declared-test-ref) (lock-declared-test-ref)))))
+
+(deftest lock-refs-local-vector-test
+  (let [test-refs [(ref 0) (ref 1)]]
+    (dosync
+      (lock-refs alter []
+                 (on-commit
+                   (is (== 2 (count (context)))))))))
+
+(deftest lock-refs-local-non-ref-test
+  (let [test-atom (atom 0) test-ref (ref 0)]
+    (dosync
+      (lock-refs alter []
+                 (on-commit
+                   (is (== 1 (count (context)))))))))
+
+(deftest lock-refs-expansion-test
+  ; Literal refs are locked directly while vars are checked when the code runs
+  (let [expansion (flatten (macroexpand-1 `(lock-refs ~'ensure ~global-test-ref)))]
+    (is (some #{'clojure.core/ensure} expansion))
+    (is (not-any? #{'clojure.eclojure/extract-refs} expansion)))
+  (let [expansion (flatten (macroexpand-1 `(lock-refs ~'ensure global-test-ref)))]
+    (is (some #{'clojure.core/instance?} expansion))))
@@ -0,0 +1,123 @@
+; eClojure
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(ns eclojure.namespaces
+  (:use clojure.test clojure.eclojure eclojure.eclojure-test-helper)
+  (:require [clojure.java.io :as io]))
+
+(def loads (atom []))
+
+;; Writes namespaces to a new source directory, each recording when it is loaded
+(defn write-sources [sources]
+  (let [dir (temp-dir)]
+    (doseq [[lib source] sources]
+      (let [file (io/file dir (str (.replace (name lib) \. \/) ".clj"))]
+        (io/make-parents file)
+        (spit file (str source "\n(swap! eclojure.namespaces/loads conj '" lib ")\n"))))
+    dir))
+
+(defmacro with-sources [sources & body]
+  `(let [dir# (write-sources ~sources)]
+     (reset! loads [])
+     (try
+       (with-bindings {clojure.lang.Compiler/LOADER (doto (clojure.lang.DynamicClassLoader.)
+                                                      (.addURL (.toURL (.toURI dir#))))}
+         ~@body)
+       (finally
+         (delete-dir dir#)))))
+
+(deftest require-parallel-test
+  (with-sources {'parallel.top "(ns parallel.top (:require [parallel.left :as l] (parallel right)))"
+                 'parallel.left "(ns parallel.left (:use parallel.base))"
+                 'parallel.right "(ns parallel.right (:require parallel.base)) (require 'parallel.dynamic)"
+                 'parallel.base "(ns parallel.base)"
+                 'parallel.dynamic "(ns parallel.dynamic)"}
+    (require-parallel 'parallel.top)
+    (is (= 5 (count @loads)))
+    (is (= (set @loads) '#{parallel.top parallel.left parallel.right parallel.base parallel.dynamic}))
+    (is (= 'parallel.base (first @loads)))
+    (is (= 'parallel.top (last @loads)))
+    (is (< (.indexOf ^java.util.List @loads 'parallel.dynamic)
+           (.indexOf ^java.util.List @loads 'parallel.right)))
+    ; Loaded libs are skipped
+    (require-parallel 'parallel.top 'parallel.base)
+    (is (= 5 (count @loads)))))
+
+(deftest require-parallel-failure-test
+  (with-sources {'failing.top "(ns failing.top (:require failing.broken failing.other))"
+                 'failing.broken "(ns failing.broken) (throw (IllegalStateException. \"broken\"))"
+                 'failing.other "(ns failing.other)"}
+    (is (thrown-with-msg? Exception #"broken" (require-parallel 'failing.top)))
+    (is (not (contains? (loaded-libs) 'failing.top)))))
+
+(deftest require-parallel-cycle-test
+  (with-sources {'cyclic.a "(ns cyclic.a (:require cyclic.b))"
+                 'cyclic.b "(ns cyclic.b (:require cyclic.a))"}
+    (is (thrown-with-msg? IllegalStateException #"cyclic.a, cyclic.b" (require-parallel 'cyclic.a)))
+    (is (empty? @loads))))
+
+(deftest concurrent-require-test
+  (with-sources {'concurrent.slow "(ns concurrent.slow) (Thread/sleep 100)"}
+    (let [requires (doall (repeatedly 4 #(future (require 'concurrent.slow))))]
+      (doseq [r requires] @r)
+      (is (= '[concurrent.slow] @loads)))))
+
+(deftest concurrent-require-cycle-test
+  (with-sources {'cycle.a "(Thread/sleep 300) (ns cycle.a (:require cycle.b))"
+                 'cycle.b "(Thread/sleep 300) (ns cycle.b (:require cycle.a))"}
+    (let [requires [(future (require 'cycle.a)) (future (require 'cycle.b))]]
+      (doseq [r requires]
+        (is (thrown-with-msg? java.util.concurrent.ExecutionException #"Cyclic load dependency"
+                              (deref r 10000 nil))))
+      (is (empty? @loads)))))
+
+;; Returns the id of the nested fn class of each namespace compiled into dir
+(defn compiled-ids [dir]
+  (into {} (for [^java.io.File file (file-seq dir)
+                 :let [[_ lib id] (re-find #"^(\w+)\$f\$fn__(\d+)\.class$" (.getName file))]
+                 :when lib]
+             [lib (Long/parseLong id)])))
+
+(deftest compile-parallel-test
+  (doseq [[prefix deterministic] [["compiled" false] ["ordered" true]]]
+    (let [lib #(symbol (str prefix \. %))
+          sources (into {} (for [[name requires] {"top" ["left" "right"] "left" ["base"] "right" ["base"] "base" []}]
+                             [(lib name) (format "(ns %s%s) (def f (fn [] (fn [])))" (lib name)
+                                                 (apply str (for [r requires] (str " (:require " (lib r) ")"))))]))
+          out (temp-dir)]
+      (try
+        (with-sources sources
+          (binding [*compile-path* (str out)]
+            (compile-parallel [(lib "top")] :threads 3 :deterministic deterministic))
+          (is (= (lib "base") (first @loads)))
+          (is (= (lib "top") (last @loads)))
+          (is (= (set (keys sources)) (set @loads)))
+          (is (= [prefix] (vec (.list out))) "Staging directories are removed once merged")
+          (is (= #{"base__init.class" "left__init.class" "right__init.class" "top__init.class"}
+                 (set (filter #(.endsWith ^String % "__init.class") (.list (io/file out prefix))))))
+          (when deterministic
+            (is (apply < (map (compiled-ids out) ["base" "left" "right" "top"]))
+                "Ids are reserved in the order of the names")))
+        (finally
+          (delete-dir out))))))
+
+(deftest compile-parallel-failure-test
+  (let [out (temp-dir)]
+    (try
+      (with-sources {'uncompiled.top "(ns uncompiled.top (:require uncompiled.broken uncompiled.other))"
+                     'uncompiled.broken "(ns uncompiled.broken) (throw (IllegalStateException. \"broken\"))"
+                     'uncompiled.other "(ns uncompiled.other)"}
+        (binding [*compile-path* (str out)]
+          (is (thrown-with-msg? Exception #"broken"
+                                (compile-parallel '[uncompiled.top] :threads 2 :deterministic true))))
+        (is (not-any? #{'uncompiled.top} @loads))
+        (is (empty? (.list out)) "Nothing is merged when compiling deterministically fails"))
+      (finally
+        (delete-dir out)))))
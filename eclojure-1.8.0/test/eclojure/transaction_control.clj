@@ -151,3 +151,125 @@
     (dosync
       (ref-set terminate-ref 5))
     (is (== @terminate-ref 5))))
+
+; Serializable
+(deftest serializable-write-skew-test
+  (let [read-ref (ref 0) write-ref (ref 0)]
+    (with-local-vars [attempts 0]
+      (dosync
+        (serializable)
+        (var-set attempts (inc @attempts))
+        (let [read-val @read-ref]
+          ; Another transaction commits to the ref read after the read point
+          (when (== @attempts 1)
+            @(future (dosync (alter read-ref inc))))
+          (ref-set write-ref read-val)))
+      (is (== @attempts 2))
+      (is (== @write-ref @read-ref 1)))))
+
+(deftest snapshot-isolation-write-skew-test
+  (let [read-ref (ref 0) write-ref (ref 0)]
+    (with-local-vars [attempts 0]
+      (dosync
+        (var-set attempts (inc @attempts))
+        (let [read-val @read-ref]
+          (when (== @attempts 1)
+            @(future (dosync (alter read-ref inc))))
+          (ref-set write-ref read-val)))
+      (is (== @attempts 1))
+      (is (== @write-ref 0)))))
+
+(deftest serializable-not-retry-test
+  (let [read-ref (ref 0) write-ref (ref 0)]
+    (is (assert-not-retry
+          (dosync
+            (serializable)
+            (ref-set write-ref @read-ref))))))
+
+; Change Feed
+(deftest change-feed-test
+  (let [feed-ref-one (ref 0) feed-ref-two (ref 0)
+        cursor (change-feed-cursor (change-feed 16))
+        ; Assertions are not made until the feed is stopped as clojure.test uses refs
+        [entries remaining] (try
+                              (dosync
+                                (alter feed-ref-one inc)
+                                (alter feed-ref-two + 2))
+                              (dosync
+                                (deref feed-ref-one))
+                              (dosync
+                                (commute feed-ref-one inc))
+                              [(tail-change-feed cursor 10) (tail-change-feed cursor 10)]
+                              (finally
+                                (stop-change-feed)))
+        [first-entry second-entry] entries]
+    (is (== 2 (count entries)))
+    (is (< (:commit-point first-entry) (:commit-point second-entry)))
+    (is (= #{[feed-ref-one 0 1] [feed-ref-two 0 2]} (set (:changes first-entry))))
+    (is (= [[feed-ref-one 1 2]] (:changes second-entry)))
+    (is (empty? remaining))))
+
+(deftest change-feed-commit-order-test
+  (let [feed-refs (repeatedly 4 #(ref 0))
+        cursor (change-feed-cursor (change-feed 1024))
+        entries (try
+                  (doseq [writer (doall (for [feed-ref feed-refs]
+                                          (future (dotimes [_ 200]
+                                                    (dosync (alter feed-ref inc))))))]
+                    @writer)
+                  (tail-change-feed cursor 1000)
+                  (finally
+                    (stop-change-feed)))]
+    (is (== 800 (count entries)))
+    (is (apply < (map :commit-point entries)))))
+
+(deftest change-feed-failed-commit-test
+  ; Watches are read after the slot in the feed is reserved, so throwing there fails the commit
+  (let [armed (atom true)
+        failing-ref (proxy [clojure.lang.Ref] [0]
+                      (getWatches []
+                        (if (compare-and-set! armed true false)
+                          (throw (RuntimeException. "failed commit"))
+                          (proxy-super getWatches))))
+        feed-ref (ref 0)
+        cursor (change-feed-cursor (change-feed 16))
+        [failure entries] (try
+                            [(try
+                               (dosync (alter failing-ref inc))
+                               (catch RuntimeException e (.getMessage e)))
+                             (do (dosync (alter feed-ref inc))
+                                 (tail-change-feed cursor 10))]
+                            (finally
+                              (stop-change-feed)))]
+    (is (= "failed commit" failure))
+    ; The slot of the failed commit is skipped instead of stalling the cursor
+    (is (= [[[feed-ref 0 1]]] (map :changes entries)))))
+
+(deftest change-feed-overflow-test
+  (let [feed-ref (ref 0)
+        cursor (change-feed-cursor (change-feed 2))
+        entries (try
+                  (dotimes [_ 5]
+                    (dosync
+                      (alter feed-ref inc)))
+                  (tail-change-feed cursor 10)
+                  (finally
+                    (stop-change-feed)))]
+    (is (= [[[feed-ref 3 4]] [[feed-ref 4 5]]] (map :changes entries)))
+    (is (== 3 (.missed cursor)))))
+
+(deftest change-feed-late-publish-test
+  ; A transaction publishing after the ring wrapped must not replace the newer entry in its slot
+  (let [feed (clojure.lang.STMChangeFeed. 2)
+        cursor (change-feed-cursor feed)
+        method (fn [name & types]
+                 (doto (.getDeclaredMethod clojure.lang.STMChangeFeed name (into-array Class types))
+                   (.setAccessible true)))
+        reserve (method "reserve" Long/TYPE)
+        publish (method "publish" Long/TYPE Long/TYPE (class (object-array 0)))]
+    (doseq [sequence [0 1 2]]
+      (.invoke reserve feed (object-array [sequence])))
+    (doseq [sequence [1 2 0]]
+      (.invoke publish feed (object-array [sequence sequence (object-array [:ref sequence (inc sequence)])])))
+    (is (= [1 2] (map :commit-point (tail-change-feed cursor 10))))
+    (is (== 1 (.missed cursor)))))
@@ -0,0 +1,53 @@
+; eClojure
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(ns eclojure.transducers
+  (:use clojure.test clojure.eclojure))
+
+;; Checks that a fused transducer gives the same results as the composed one
+(defmacro is-fused [& xforms]
+  `(let [fused# (fuse ~@xforms)
+         composed# (comp ~@xforms)]
+     (doseq [coll# [[] (range 10) (range 100)]]
+       (is (= (transduce composed# conj coll#) (transduce fused# conj coll#)))
+       (is (= (sequence composed# coll#) (sequence fused# coll#)))
+       (is (= (into [] composed# coll#) (into [] fused# coll#))))))
+
+; Fusion
+(deftest fused-steps-test
+  (is-fused (map inc))
+  (is-fused (map inc) (filter even?) (remove #(zero? (mod % 3))))
+  (is-fused (keep #(when (odd? %) (* % %))) (map str))
+  (is-fused (drop 3) (take 5))
+  (is-fused (take 0))
+  (is-fused (drop-while #(< % 5)) (take-while #(< % 20)) (map -)))
+
+(deftest fused-early-termination-test
+  (let [calls (atom 0)
+        xf (fuse (map #(do (swap! calls inc) %)) (take 3))]
+    (is (= [0 1 2] (into [] xf (range 100))))
+    (is (= 3 @calls))
+    (is (= [0 1 2] (into [] xf (range 100))) "State is created for each reducing function")
+    (is (= 3 (transduce (fuse (take 10)) (fn ([r] r) ([r x] (if (= x 3) (reduced r) (+ r x)))) 0 (range)))))
+  (is (= [0 1] (sequence (fuse (take-while #(< % 2))) (range)))))
+
+(deftest fused-arguments-test
+  (let [evaluated (atom 0)
+        xf (fuse (map (do (swap! evaluated inc) inc)) (take (do (swap! evaluated inc) 2)))]
+    (dotimes [_ 3]
+      (is (= [1 2] (into [] xf (range 10)))))
+    (is (= 2 @evaluated))))
+
+(deftest fused-composition-test
+  (is-fused (map inc) (partition-all 3) (map (partial apply +)) (filter even?))
+  (is-fused (dedupe) (map inc))
+  (is (= [2 4] (into [] (fuse (comp (map inc) (filter even?))) (range 5))))
+  (let [map (fn [f] (clojure.core/map (comp inc f)))]
+    (is (= [2 3] (into [] (fuse (map inc)) [0 1])) "Locals shadowing core transducers are not fused")))
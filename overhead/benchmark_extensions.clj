@@ -0,0 +1,429 @@
+;   Copyright (c) Daniel Rune Jensen, Thomas Stig Jacobsen and
+;   Søren Kejser Jensen. All rights reserved.
+;   The use and distribution terms for this software are covered by the Eclipse
+;   Public License 1.0 (http://opensource.org/licenses/eclipse-1.0.php) which
+;   can be found in the file epl-v10.html at the root of this distribution. By
+;   using this software in any fashion, you are agreeing to be bound by the
+;   terms of this license.
+;   You must not remove this notice, or any other, from this software.
+
+(use 'criterium.core)
+(use 'clojure.eclojure)
+(require 'clojure.java.io 'clojure.java.shell)
+
+; Measures the bytes allocated by the current thread per execution of body
+(defmacro allocation [iterations & body]
+  `(let [mx-bean# (java.lang.management.ManagementFactory/getThreadMXBean)
+         thread-id# (.getId (Thread/currentThread))
+         allocated# #(.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean mx-bean# thread-id#)]
+     ; Warm up so the measurement is of the JIT compiled code
+     (dotimes [_# ~iterations] ~@body)
+     (let [before# (allocated#)]
+       (dotimes [_# ~iterations] ~@body)
+       (println "Bytes allocated per execution:"
+                (double (/ (- (allocated#) before#) ~iterations))))))
+
+; Measures the time used by threads each executing body a number of times
+(defmacro concurrently [threads iterations & body]
+  `(let [start# (System/nanoTime)
+         workers# (doall (repeatedly ~threads #(future (dotimes [_# ~iterations] ~@body))))]
+     (doseq [worker# workers#] @worker#)
+     (println "Milliseconds used by" ~threads "threads:"
+              (double (/ (- (System/nanoTime) start#) 1000000)))))
+
+; Compiles a loop calling step on each index with the compiler options
+(defn var-loop-step [x] (inc x))
+(defprotocol LoopStep (protocol-loop-step [x]))
+(extend-protocol LoopStep Long (protocol-loop-step [x] (inc x)))
+(defn compile-loop
+  ([options] (compile-loop options 'user/var-loop-step))
+  ([options step]
+   (binding [*compiler-options* (merge *compiler-options* options)]
+     (eval `(fn [n#]
+              (loop [i# 0 acc# 0]
+                (if (< i# n#)
+                  (recur (inc i#) (+ acc# (~step i#)))
+                  acc#)))))))
+
+; Writes namespaces given as a map from names to ns forms to a new directory,
+; each namespace defines the functions after its ns form
+(defn write-namespaces [namespaces functions]
+  (let [dir (.toFile (java.nio.file.Files/createTempDirectory
+                       "startup" (make-array java.nio.file.attribute.FileAttribute 0)))]
+    (doseq [[lib ns-form] namespaces]
+      (let [file (clojure.java.io/file dir (str (.replace (name lib) \. \/) ".clj"))]
+        (clojure.java.io/make-parents file)
+        (spit file (apply str (pr-str ns-form) "\n"
+                          (for [i (range functions)]
+                            (format "(defn f%d [x] (let [y (inc x)] (if (even? y) (* y %d) (str y))))\n" i i))))))
+    dir))
+
+; Measures the time used to start a runtime evaluating expr with the
+; directory on the classpath and the system properties set, the output
+; of expr is printed after the time
+(defn startup [label dir expr & properties]
+  (let [java (str (System/getProperty "java.home") "/bin/java")
+        classpath (str (System/getProperty "java.class.path") java.io.File/pathSeparator dir)
+        start (System/nanoTime)]
+    (let [result (apply clojure.java.shell/sh java (concat properties ["-cp" classpath "clojure.main" "-e" expr]))]
+      (println "Milliseconds used to start" label
+               (double (/ (- (System/nanoTime) start) 1000000)))
+      (print (:out result))
+      (when-not (zero? (:exit result))
+        (println (:err result))))))
+
+(defn delete-dir [dir]
+  (doseq [file (reverse (file-seq dir))]
+    (.delete ^java.io.File file)))
+
+
+; Benchmark One - Notify: Execution of notify with a single listener.
+(println "[Running Benchmark One] - Notify")
+(def notify-key (listen :benchmark-notify (fn [] nil)))
+(allocation 1000000
+  (notify :benchmark-notify))
+(bench
+  (notify :benchmark-notify))
+(dismiss :benchmark-notify notify-key :all)
+(println)
+
+
+; Benchmark Two - STM Notify: Execution of a dosync block containing a
+; stm-notify with a single listener.
+(println "[Running Benchmark Two] - STM Notify")
+(allocation 1000000
+  (dosync
+    (stm-listen :benchmark-stm-notify (fn [] nil))
+    (stm-notify :benchmark-stm-notify)))
+(bench
+  (dosync
+    (stm-listen :benchmark-stm-notify (fn [] nil))
+    (stm-notify :benchmark-stm-notify)))
+(println)
+
+
+; Benchmark Three - JavaRef Deref: Allocation and execution of dosync blocks
+; peeking at a JavaRef by taking and returning the object with the
+; destructive deref, and by borrowing it.
+(println "[Running Benchmark Three] - JavaRef Deref")
+(defn take-return [java-ref]
+  (dosync
+    (when-let [array-list (deref java-ref)]
+      (ref-set java-ref array-list))))
+(defn borrow-peek [java-ref]
+  (dosync
+    (borrow java-ref)))
+(doseq [[label peek-object] [["Take and return" take-return] ["Borrow" borrow-peek]]]
+  (let [peeked-java-ref (java-ref (java.util.ArrayList. [1 2 3]))]
+    (println label)
+    (allocation 100000
+      (peek-object peeked-java-ref))
+    (bench
+      (peek-object peeked-java-ref))))
+(println)
+
+
+; Benchmark Four - JavaRef Contention: Execution of the dosync blocks from
+; benchmark three on a shared JavaRef from multiple threads, with every
+; thread taking and returning, every thread borrowing, and one thread taking
+; and returning while the others borrow.
+(println "[Running Benchmark Four] - JavaRef Contention")
+(doseq [[label peeks] [["Take and return" (repeat 4 take-return)]
+                       ["Borrow" (repeat 4 borrow-peek)]
+                       ["Take and return with borrows" (cons take-return (repeat 3 borrow-peek))]]]
+  (let [shared-java-ref (java-ref (java.util.ArrayList. [1 2 3]))
+        peeks (vec peeks)
+        thread-ids (java.util.concurrent.atomic.AtomicInteger.)]
+    (println label)
+    (concurrently 4 1
+      (let [peek-object (peeks (.getAndIncrement thread-ids))]
+        (dotimes [_ 100000]
+          (peek-object shared-java-ref))))))
+(println)
+
+
+; Benchmark Five - Agent Sends: Execution of a million sends to a single
+; agent draining one action per executor handoff and in batches of 64.
+(println "[Running Benchmark Five] - Agent Sends")
+(doseq [batch-size [1 64]]
+  (let [send-agent (set-agent-batch-size! (agent 0) batch-size)
+        start (System/nanoTime)]
+    (dotimes [_ 1000000]
+      (send send-agent inc))
+    (await send-agent)
+    (println "Milliseconds used with batch size" batch-size ":"
+             (double (/ (- (System/nanoTime) start) 1000000)))))
+(println)
+
+
+; Benchmark Six - Atom Contention: Execution of swaps on a single atom
+; from multiple threads in each contention mode.
+(println "[Running Benchmark Six] - Atom Contention")
+(doseq [mode [:default :metrics :combining]]
+  (let [contended-atom (set-atom-contention-mode! (atom {}) mode)]
+    (println "Contention mode" mode)
+    (concurrently 8 100000
+      (swap! contended-atom update :count (fnil inc 0)))
+    (println "Metrics:" (atom-metrics contended-atom))))
+(println)
+
+
+; Benchmark Seven - Striped Atom: Execution of the swaps from benchmark six
+; on an atom and on a striped atom merging the partial maps on deref.
+(println "[Running Benchmark Seven] - Striped Atom")
+(let [plain-atom (atom {})
+      counter-atom (striped-atom {} (partial merge-with +))]
+  (println "Atom")
+  (concurrently 8 100000
+    (swap! plain-atom update :count (fnil inc 0)))
+  (println "Striped atom")
+  (concurrently 8 100000
+    (swap! counter-atom update :count (fnil inc 0)))
+  (println "Counts:" @plain-atom @counter-atom))
+(println)
+
+
+; Benchmark Eight - Future Submission: Submission of futures conveying a
+; binding frame of several vars, and a pmap over the same bindings.
+(println "[Running Benchmark Eight] - Future Submission")
+(binding [*print-length* 10 *print-level* 10 *out* *out* *err* *err*]
+  (allocation 100000
+    @(future nil))
+  (let [start (System/nanoTime)]
+    (doseq [submitted (doall (repeatedly 100000 #(future *print-length*)))]
+      @submitted)
+    (println "Milliseconds used for 100000 futures:"
+             (double (/ (- (System/nanoTime) start) 1000000))))
+  (let [start (System/nanoTime)]
+    (dorun (pmap (fn [x] (+ x *print-level*)) (range 100000)))
+    (println "Milliseconds used for pmap over 100000 elements:"
+             (double (/ (- (System/nanoTime) start) 1000000)))))
+(println)
+
+
+; Benchmark Nine - Constant Roots: Execution of a loop calling a function
+; through a var with the root read from the var and as a call site constant.
+(println "[Running Benchmark Nine] - Constant Roots")
+(doseq [options [{} {:constant-roots true}]]
+  (let [var-loop (compile-loop options)]
+    (println "Compiler options" options)
+    (bench
+      (var-loop 1000))))
+(println)
+
+
+; Benchmark Ten - Invokedynamic: Execution of loops calling a function
+; through a var and a protocol method extended to Long, compiled without
+; options, with direct linking and with invokedynamic call sites.
+(println "[Running Benchmark Ten] - Invokedynamic")
+(doseq [options [{} {:direct-linking true} {:invokedynamic true}]
+        step ['user/var-loop-step 'user/protocol-loop-step]]
+  (let [step-loop (compile-loop options step)]
+    (println "Compiler options" options "calling" step)
+    (bench
+      (step-loop 1000))))
+(println)
+
+
+; Benchmark Eleven - Compile Cache: Startup time of runtimes requiring a
+; generated namespace of 500 functions from source, without the compile
+; cache, with an empty cache and with the cache filled by the previous run.
+(println "[Running Benchmark Eleven] - Compile Cache")
+(let [dir (write-namespaces {'startup '(ns startup)} 500)
+      cache (str "-Dclojure.compile.cache=" (clojure.java.io/file dir "cache"))]
+  (startup "without cache" dir "(require 'startup)")
+  (startup "with empty cache" dir "(require 'startup)" cache)
+  (dotimes [_ 3]
+    (startup "with filled cache" dir "(require 'startup)" cache))
+  (delete-dir dir))
+(println)
+
+
+; Benchmark Twelve - Parallel Require: Startup time of runtimes requiring a
+; namespace using eight independent namespaces of 100 functions each from
+; source, with require and with require-parallel.
+(println "[Running Benchmark Twelve] - Parallel Require")
+(let [libs (map #(symbol (str "startup.lib" %)) (range 8))
+      dir (write-namespaces (into {'startup.top (list 'ns 'startup.top (cons :require libs))}
+                                  (for [lib libs] [lib (list 'ns lib)]))
+                            100)]
+  (dotimes [_ 3]
+    (startup "with require" dir "(use 'clojure.eclojure) (require 'startup.top)")
+    (startup "with require-parallel" dir "(use 'clojure.eclojure) (require-parallel 'startup.top)"))
+  (delete-dir dir))
+(println)
+
+
+; Benchmark Thirteen - Lazy Roots: Startup time and heap used by runtimes
+; requiring a namespace of 500 functions compiled ahead of time with eager
+; and with lazy roots, where only one of the functions is called.
+(println "[Running Benchmark Thirteen] - Lazy Roots")
+(let [dir (write-namespaces {'startup.aot '(ns startup.aot)} 500)
+      expr (str "(do (require 'startup.aot) (startup.aot/f1 1) (System/gc)"
+                " (println \"Kilobytes of heap used:\" (quot (- (.totalMemory (Runtime/getRuntime))"
+                " (.freeMemory (Runtime/getRuntime))) 1024)))")]
+  (doseq [lazy [false true]]
+    (let [classes (clojure.java.io/file dir (str "classes-" lazy))
+          classpath (str dir java.io.File/pathSeparator classes)]
+      (.mkdir classes)
+      (startup (str "compiling with lazy roots " lazy) classpath "(do (compile 'startup.aot) nil)"
+               (str "-Dclojure.compile.path=" classes) (str "-Dclojure.compiler.lazy-roots=" lazy))
+      (dotimes [_ 3]
+        (startup (str "with lazy roots " lazy) classpath expr))))
+  (delete-dir dir))
+(println)
+
+
+; Benchmark Fourteen - Primitive Interfaces: Allocation and execution of
+; loops calling functions of five doubles without and with primitive hints,
+; a function with primitive hints can now take more than four arguments.
+(println "[Running Benchmark Fourteen] - Primitive Interfaces")
+(defn boxed-kernel [a b c d e] (+ (* a b) (* c d) e))
+(defn prim-kernel ^double [^double a ^double b ^double c ^double d ^double e] (+ (* a b) (* c d) e))
+(doseq [kernel ['user/boxed-kernel 'user/prim-kernel]]
+  (let [kernel-loop (eval `(fn [~'n]
+                             (loop [~'i 0 ~'acc 0.0]
+                               (if (< ~'i (long ~'n))
+                                 (recur (inc ~'i) (double (~kernel ~'acc 0.5 (double ~'i) 2.0 1.0)))
+                                 ~'acc))))]
+    (println "Calling" kernel "in a loop of 1000 iterations")
+    (allocation 10000
+      (kernel-loop 1000))
+    (bench
+      (kernel-loop 1000))))
+(println)
+
+
+; Benchmark Fifteen - Singleton Functions: Allocation and execution of a
+; reduce with a function that closes over nothing, compiled with and without
+; the singleton-fns compiler option so the function is created once, and of
+; alter-run on a ref.
+(println "[Running Benchmark Fifteen] - Singleton Functions")
+(defn sum-squares-form []
+  '(fn [xs] (reduce (fn [acc x] (+ acc (* x x))) 0 xs)))
+(def sum-squares (eval (sum-squares-form)))
+(def singleton-sum-squares
+  (binding [*compiler-options* (merge *compiler-options* {:singleton-fns true})]
+    (eval (sum-squares-form))))
+(let [xs (vec (range 8))]
+  (doseq [[label f] [["sum-squares" sum-squares] ["sum-squares with singleton fns" singleton-sum-squares]]]
+    (println "Calling" label "on a vector of 8 numbers")
+    (allocation 1000000
+      (f xs))
+    (bench
+      (f xs))))
+(let [counter (ref 0)]
+  (println "Calling alter-run in a transaction")
+  (allocation 100000
+    (dosync (alter-run counter + 1)))
+  (bench
+    (dosync (alter-run counter + 1))))
+(println)
+
+
+; Benchmark Sixteen - Keyword Lookups: Execution of request handlers that
+; destructure a request map and nested maps with and without keyword
+; destructuring, and read a record through keywords with the record type hinted.
+(println "[Running Benchmark Sixteen] - Keyword Lookups")
+(defrecord Request [request-method uri headers params])
+(defn map-handler-form []
+  '(fn [request]
+     (let [{:keys [request-method uri headers params]} request
+           {:keys [user-agent accept]} headers
+           {:keys [id page]} params]
+       (if (= request-method :get)
+         (+ (count uri) (count user-agent) (count accept) id page)
+         0))))
+(def map-handler (eval (map-handler-form)))
+(def keyword-map-handler
+  (binding [*compiler-options* (merge *compiler-options* {:keyword-destructuring true})]
+    (eval (map-handler-form))))
+(defn record-handler [^Request request]
+  (if (= (:request-method request) :get)
+    (+ (count (:uri request)) (count (:headers request)) (count (:params request)))
+    0))
+(let [headers {:user-agent "benchmark" :accept "text/plain"}
+      params {:id 1 :page 2}
+      request {:request-method :get :uri "/users" :headers headers :params params}
+      record (->Request :get "/users" headers params)]
+  (println "Calling map-handler")
+  (bench
+    (map-handler request))
+  (println "Calling map-handler with keyword destructuring")
+  (bench
+    (keyword-map-handler request))
+  (println "Calling record-handler")
+  (bench
+    (record-handler record)))
+(println)
+
+
+; Benchmark Seventeen - Fused Transducers: Execution of transduce and
+; sequence over a vector of 10000 numbers with a pipeline of map, filter and
+; take transducers composed with comp and fused with fuse.
+(println "[Running Benchmark Seventeen] - Fused Transducers")
+(let [xs (vec (range 10000))
+      composed (comp (map inc) (filter even?) (map #(* % %)) (take 4000))
+      fused (fuse (map inc) (filter even?) (map #(* % %)) (take 4000))]
+  (doseq [[label xf] [["composed" composed] ["fused" fused]]]
+    (println "Calling transduce with the" label "pipeline")
+    (bench
+      (transduce xf + 0 xs))
+    (println "Calling sequence with the" label "pipeline")
+    (bench
+      (reduce + 0 (sequence xf xs)))))
+(println)
+
+
+; Benchmark Eighteen - Parallel Compilation: Time used to compile eight
+; independent namespaces of 100 functions each and a namespace using them
+; ahead of time on one thread, on a thread per processor, and on a thread per
+; processor with deterministic output.
+(println "[Running Benchmark Eighteen] - Parallel Compilation")
+(let [libs (map #(symbol (str "startup.lib" %)) (range 8))
+      dir (write-namespaces (into {'startup.top (list 'ns 'startup.top (cons :require libs))}
+                                  (for [lib libs] [lib (list 'ns lib)]))
+                            100)
+      threads (.availableProcessors (Runtime/getRuntime))
+      classes (clojure.java.io/file dir "classes")
+      classpath (str dir java.io.File/pathSeparator classes)]
+  (dotimes [_ 3]
+    (doseq [[label properties] [["on one thread" []]
+                                ["on a thread per processor" [(str "-Dclojure.compile.threads=" threads)]]
+                                ["deterministically on a thread per processor"
+                                 [(str "-Dclojure.compile.threads=" threads) "-Dclojure.compile.deterministic=true"]]]]
+      (.mkdir classes)
+      (apply startup (str "compiling " label) classpath
+             "(do (clojure.lang.Compile/main (into-array String [\"startup.top\"])) nil)"
+             (str "-Dclojure.compile.path=" classes) properties)
+      (delete-dir classes)))
+  (delete-dir dir))
+(println)
+
+
+; Benchmark Nineteen - Method Splitting: Execution of a message handler
+; dispatching on 100 message types with case, which compiles to a method
+; HotSpot does not JIT compile, with and without splitting the method.
+(println "[Running Benchmark Nineteen] - Method Splitting")
+(defn compile-handler [options]
+  (binding [*compiler-options* (merge *compiler-options* options)]
+    (eval (list 'fn '[^long type m]
+                (concat (list 'case 'type)
+                        (mapcat (fn [i] [i (list 'let ['v (list 'get 'm i)]
+                                                 (list 'if 'v
+                                                       (list '+ 'v i)
+                                                       (list 'throw (list 'ex-info (list 'str "Missing field " i " in " 'm)
+                                                                          (list 'hash-map :type i :keys '(keys m) :count '(count m))))))])
+                                (range 100))
+                        ['(throw (IllegalArgumentException. "Unknown message type"))])))))
+(let [message (zipmap (range 100) (range 100))]
+  (doseq [[label options] [["unsplit" {:split-methods false}] ["split" {}]]]
+    (let [handler (compile-handler options)]
+      (println "Calling the" label "handler")
+      (bench
+        (handler 50 message)))))
+(println)
+
+
+; Stops the threads used by futures and agents so the JVM can exit
+(shutdown-agents)
@@ -23,7 +23,8 @@ fi
 # Function for running the benchmarks with a specific version of Clojure
 function run_benchmarks {
     # $1: The path to a jar containing the Clojure runtime
-    java -cp "$1:$criterium":. clojure.main "benchmark_overhead.clj"
+    # $2: The benchmark script to run
+    java -cp "$1:$criterium":. clojure.main "$2"
 }
 
 # Stores time stamp for grouping the two experiments in the folder results
@@ -32,8 +33,12 @@ mkdir -p "results"
 
 # Executes the benchmarks using Clojure 1.8.0
 echo "Running Clojure Benchmarks: $clojure"
-run_benchmarks "$clojure" > "results/$timestamp-clojure-1.8.0.txt"
+run_benchmarks "$clojure" "benchmark_overhead.clj" > "results/$timestamp-clojure-1.8.0.txt"
 
 # Executes the benchmarks using eClojure 1.8.0
 echo "Running eClojure Benchmarks: $eclojure"
-run_benchmarks "$eclojure" > "results/$timestamp-eclojure-1.8.0.txt"
+run_benchmarks "$eclojure" "benchmark_overhead.clj" > "results/$timestamp-eclojure-1.8.0.txt"
+
+# Executes the benchmarks of the extensions only available in eClojure 1.8.0
+echo "Running eClojure Extension Benchmarks: $eclojure"
+run_benchmarks "$eclojure" "benchmark_extensions.clj" > "results/$timestamp-eclojure-1.8.0-extensions.txt"